@@ -0,0 +1,92 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.activation.MimeType;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentReaderBenchmark {
+
+    @Param({Fixtures.SMALL_TEXT, Fixtures.DEEP_MULTIPART, Fixtures.LARGE_ATTACHMENT, Fixtures.NESTED_RFC822})
+    public String corpus;
+
+    private byte[] bytes;
+    private Path output;
+    private WriterPool writerPool;
+    private Writer writer;
+    private ContentReader contentReader;
+    private int iteration = 0;
+    private int number = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MessagingException {
+        bytes = Fixtures.load(corpus);
+        output = Files.createTempDirectory("imap-backup-jmh");
+        BackupSettings settings = new BackupSettings();
+        settings.setOutput(output.toString());
+        Metrics metrics = new Metrics();
+        writerPool = new WriterPool(settings);
+        writer = new Writer(settings, "imapBackup", "benchmark", metrics, writerPool);
+        contentReader = new ContentReader(writer, PartFilter.of(settings), metrics);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanIteration() throws IOException {
+        // Every iteration writes into its own folder, dropping it keeps the disk usage flat
+        FileUtils.deleteDirectory(writer.getAccountPath().resolve(getIterationFolder()).toFile());
+        iteration++;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writerPool.shutdown();
+        writer.stop();
+        FileUtils.deleteDirectory(output.toFile());
+    }
+
+    @Benchmark
+    public MimeMessage parse() throws MessagingException {
+        MimeMessage message = Fixtures.parse(bytes);
+        // Parsing is lazy, touching the content forces the multipart structure to be built
+        Utility.getContent(message);
+        return message;
+    }
+
+    @Benchmark
+    public void parseAndWrite(Blackhole blackhole) throws MessagingException {
+        MimeMessage message = Fixtures.parse(bytes);
+        MimeType mimeType = Utility.getMimeType(message.getContentType()).orElse(null);
+        Deque<String> folder = new ArrayDeque<>();
+        folder.add(getIterationFolder());
+        folder.add(String.valueOf(number));
+        MailInfo mailInfo = new MailInfo(number++, folder, Collections.emptyList(), Collections.emptyList(),
+                corpus, LocalDateTime.of(2021, 1, 1, 0, 0), mimeType);
+        Optional<Object> content = Utility.getContent(message);
+        if (content.isPresent()) {
+            contentReader.read(content.get(), mimeType, mailInfo);
+        }
+        writer.commitMessage(mailInfo);
+        mailInfo.getWrites().join();
+        blackhole.consume(mailInfo.getAttachments());
+    }
+
+    private String getIterationFolder() {
+        return String.format("%s-%d", corpus, iteration);
+    }
+
+}
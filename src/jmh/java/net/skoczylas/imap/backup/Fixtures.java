@@ -0,0 +1,170 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+
+class Fixtures {
+
+    static final String SMALL_TEXT = "small-text";
+    static final String DEEP_MULTIPART = "deep-multipart";
+    static final String LARGE_ATTACHMENT = "large-attachment";
+    static final String NESTED_RFC822 = "nested-rfc822";
+
+    static final Session SESSION = Session.getInstance(new Properties());
+
+    private static final Path FOLDER = Paths.get(System.getProperty("imapBackup.fixtures", "build/jmh-fixtures"));
+    private static final Date SENT_DATE = new Date(1609459200000L);
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String corpus) throws IOException, MessagingException {
+        Path file = FOLDER.resolve(corpus + ".eml");
+        if (Files.exists(file)) {
+            return Files.readAllBytes(file);
+        }
+        // Fixtures are generated once with a fixed seed so runs stay comparable
+        byte[] bytes = toBytes(create(corpus, new Random(42)));
+        Files.createDirectories(FOLDER);
+        Files.write(file, bytes);
+        return bytes;
+    }
+
+    static MimeMessage parse(byte[] bytes) throws MessagingException {
+        return new MimeMessage(SESSION, new ByteArrayInputStream(bytes));
+    }
+
+    private static MimeMessage create(String corpus, Random random) throws MessagingException, IOException {
+        switch (corpus) {
+            case SMALL_TEXT:
+                return createSmallText(random);
+            case DEEP_MULTIPART:
+                return createDeepMultipart(random);
+            case LARGE_ATTACHMENT:
+                return createLargeAttachment(random);
+            case NESTED_RFC822:
+                return createNested(random);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown corpus: %s", corpus));
+        }
+    }
+
+    private static MimeMessage createSmallText(Random random) throws MessagingException {
+        MimeMessage message = createMessage("Small text");
+        message.setText(text(random, 2 * 1024));
+        message.saveChanges();
+        return message;
+    }
+
+    private static MimeMessage createDeepMultipart(Random random) throws MessagingException, IOException {
+        MimeMultipart root = new MimeMultipart("mixed");
+        MimeMultipart current = root;
+        for (int depth = 0; depth < 8; depth++) {
+            current.addBodyPart(textPart(random, 1024));
+            current.addBodyPart(attachment(random, String.format("part-%d.bin", depth), 16 * 1024));
+            MimeMultipart child = new MimeMultipart("mixed");
+            MimeBodyPart childPart = new MimeBodyPart();
+            childPart.setContent(child);
+            current.addBodyPart(childPart);
+            current = child;
+        }
+        current.addBodyPart(textPart(random, 1024));
+
+        MimeMessage message = createMessage("Deep multipart");
+        message.setContent(root);
+        message.saveChanges();
+        return message;
+    }
+
+    private static MimeMessage createLargeAttachment(Random random) throws MessagingException, IOException {
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart(random, 1024));
+        multipart.addBodyPart(attachment(random, "large.bin", 8 * 1024 * 1024));
+
+        MimeMessage message = createMessage("Large attachment");
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    private static MimeMessage createNested(Random random) throws MessagingException, IOException {
+        MimeMessage inner = createMessage("Inner message");
+        MimeMultipart innerMultipart = new MimeMultipart("mixed");
+        innerMultipart.addBodyPart(textPart(random, 2 * 1024));
+        innerMultipart.addBodyPart(attachment(random, "inner.bin", 64 * 1024));
+        inner.setContent(innerMultipart);
+        inner.saveChanges();
+
+        MimeBodyPart nestedPart = new MimeBodyPart();
+        nestedPart.setContent(inner, "message/rfc822");
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart(random, 1024));
+        multipart.addBodyPart(nestedPart);
+
+        MimeMessage message = createMessage("Nested message");
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    private static MimeMessage createMessage(String subject) throws MessagingException {
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipients(Message.RecipientType.TO, new InternetAddress[]{new InternetAddress("recipient@example.com")});
+        message.setSubject(subject);
+        message.setSentDate(SENT_DATE);
+        return message;
+    }
+
+    private static MimeBodyPart textPart(Random random, int size) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text(random, size));
+        return part;
+    }
+
+    private static MimeBodyPart attachment(Random random, String fileName, int size) throws MessagingException {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+        part.setFileName(fileName);
+        return part;
+    }
+
+    private static String text(Random random, int size) {
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            if (builder.length() % 72 == 71) {
+                builder.append("\r\n");
+            } else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static byte[] toBytes(MimeMessage message) throws IOException, MessagingException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeTo(output);
+        return output.toByteArray();
+    }
+
+}
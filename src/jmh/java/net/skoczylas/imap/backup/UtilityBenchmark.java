@@ -0,0 +1,88 @@
+package net.skoczylas.imap.backup;
+
+import freemarker.template.TemplateException;
+import jakarta.activation.MimeType;
+import jakarta.activation.MimeTypeParseException;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilityBenchmark {
+
+    private MimeType simpleName;
+    private MimeType continuedName;
+    private Deque<String> folder;
+    private List<MailAddress> from;
+    private List<MailAddress> to;
+    private LocalDateTime receivedAt;
+    private MailInfo mailInfo;
+    private Path output;
+    private WriterPool writerPool;
+    private Writer writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MimeTypeParseException {
+        simpleName = new MimeType("application/pdf; name=\"Invoice 2021-01.pdf\"");
+        continuedName = new MimeType("application/pdf; name*0=\"Rechnung_für_Januar_\"; name*1=\"2021_Kundennummer_\"; name*2=\"123456.pdf\"");
+        folder = new ArrayDeque<>(Arrays.asList("INBOX", "Archive", "2021"));
+        from = Collections.singletonList(new MailAddress("sender@example.com", "Sender <sender@example.com>"));
+        to = Collections.singletonList(new MailAddress("recipient@example.com", "Recipient <recipient@example.com>"));
+        receivedAt = LocalDateTime.of(2021, 1, 1, 12, 30);
+        mailInfo = new MailInfo(1, folder, from, to, "Invoice for January", receivedAt, simpleName);
+        mailInfo.addAttachment("Invoice 2021-01.pdf");
+        mailInfo.addAttachment("mail_content.html");
+
+        output = Files.createTempDirectory("imap-backup-jmh");
+        BackupSettings settings = new BackupSettings();
+        settings.setOutput(output.toString());
+        writerPool = new WriterPool(settings);
+        writer = new Writer(settings, "imapBackup", "benchmark", new Metrics(), writerPool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writerPool.shutdown();
+        writer.stop();
+        FileUtils.deleteDirectory(output.toFile());
+    }
+
+    @Benchmark
+    public Optional<String> fileNameSimple() {
+        return Utility.getFileName(simpleName);
+    }
+
+    @Benchmark
+    public Optional<String> fileNameContinued() {
+        return Utility.getFileName(continuedName);
+    }
+
+    @Benchmark
+    public String normalize() {
+        return Writer.normalize("Re: [Projekt] Änderungen/Übersicht \"Q1\" <final>\r\n");
+    }
+
+    @Benchmark
+    public String hash() {
+        return MailInfo.getHash(folder, from, to, "Invoice for January", receivedAt);
+    }
+
+    @Benchmark
+    public Optional<String> mailInfoTemplate() {
+        return writer.getMailInfoFromTemplate(mailInfo);
+    }
+
+    @Benchmark
+    public void mailInfoTemplateStreaming() throws IOException, TemplateException {
+        writer.renderMailInfo(mailInfo, java.io.Writer.nullWriter());
+    }
+
+}
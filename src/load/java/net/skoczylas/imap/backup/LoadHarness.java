@@ -0,0 +1,162 @@
+package net.skoczylas.imap.backup;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import jakarta.mail.Session;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+public class LoadHarness {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadHarness.class);
+
+    private static final String USER = "load";
+    private static final String PASSWORD = "load";
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(null, "port",true, "Port of the embedded IMAP server (default: 3143)");
+        options.addOption(null, "folders",true, "Number of folders (default: 5)");
+        options.addOption(null, "messages",true, "Number of messages (default: 2000)");
+        options.addOption(null, "min-size",true, "Minimum message size in bytes (default: 2048)");
+        options.addOption(null, "max-size",true, "Maximum message size in bytes (default: 1048576)");
+        options.addOption(null, "attachment-ratio",true, "Share of messages with an attachment (default: 0.3)");
+        options.addOption(null, "seed",true, "Seed of the generated mailbox (default: 42)");
+        options.addOption("o", "output",true, "Output folder, a temporary folder is used and deleted by default");
+        options.addOption("c", "connections",true, "Maximum parallel connections to the server (default: 1)");
+        options.addOption(null, "fetch-size",true, "Messages per prefetch of envelope and structure (default: 500)");
+        options.addOption(null, "writer-threads",true, "Threads writing files (default: 20)");
+        options.addOption(null, "writer-queue",true, "Pending writes before reading from the server pauses (default: 1000)");
+        options.addOption("d", "deduplicate",false, "Store identical attachments only once");
+        GreenMail greenMail = null;
+        Path output = null;
+        boolean deleteOutput = false;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            int port = getInt(commandLine, "port", 3143);
+            MailboxGenerator generator = new MailboxGenerator(
+                    getInt(commandLine, "seed", 42),
+                    getInt(commandLine, "folders", 5),
+                    getInt(commandLine, "messages", 2000),
+                    getInt(commandLine, "min-size", 2048),
+                    getInt(commandLine, "max-size", 1024 * 1024),
+                    Optional.ofNullable(commandLine.getOptionValue("attachment-ratio")).map(Double::parseDouble).orElse(0.3));
+
+            BackupSettings settings = new BackupSettings();
+            Optional.ofNullable(commandLine.getOptionValue("c")).map(Integer::parseInt).ifPresent(settings::setConnections);
+            Optional.ofNullable(commandLine.getOptionValue("fetch-size")).map(Integer::parseInt).ifPresent(settings::setFetchSize);
+            Optional.ofNullable(commandLine.getOptionValue("writer-threads")).map(Integer::parseInt).ifPresent(settings::setWriterThreads);
+            Optional.ofNullable(commandLine.getOptionValue("writer-queue")).map(Integer::parseInt).ifPresent(settings::setWriterQueueCapacity);
+            settings.setDeduplicate(commandLine.hasOption("d"));
+            settings.setFullBackup(true);
+            if (commandLine.hasOption("o")) {
+                output = Paths.get(commandLine.getOptionValue("o"));
+            } else {
+                output = Files.createTempDirectory("imap-backup-load");
+                deleteOutput = true;
+            }
+            settings.setOutput(output.toString());
+
+            greenMail = new GreenMail(new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_IMAP));
+            greenMail.start();
+            GreenMailUser user = greenMail.setUser("load@localhost", USER, PASSWORD);
+
+            long start = System.nanoTime();
+            generator.seed(greenMail.getManagers().getImapHostManager(), user);
+            long seedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            Properties properties = new Properties();
+            properties.setProperty("mail.imap.host", "127.0.0.1");
+            properties.setProperty("mail.imap.port", String.valueOf(port));
+            Session session = Session.getInstance(properties);
+
+            System.gc();
+            resetPeakHeap();
+            start = System.nanoTime();
+            ImapBackup imapBackup = new ImapBackup(session, settings, USER, PASSWORD);
+            imapBackup.run();
+            long backupMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+            report(settings, generator, commandLine, seedMillis, backupMillis, imapBackup.getMetrics(), imapBackup.getPhaseTimes());
+        } catch (ParseException exception) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.setWidth(240);
+            formatter.printHelp("load-harness", options);
+        } catch (Exception exception) {
+            LOGGER.error("Load test failed: {}", exception.getMessage());
+        } finally {
+            if (greenMail != null) {
+                greenMail.stop();
+            }
+            if (deleteOutput) {
+                deleteQuietly(output);
+            }
+        }
+    }
+
+    private static void report(BackupSettings settings, MailboxGenerator generator, CommandLine commandLine, long seedMillis, long backupMillis, Metrics metrics, Map<String, Long> phaseTimes) {
+        int messages = getInt(commandLine, "messages", 2000);
+        double seconds = backupMillis / 1000.0;
+        double megabytes = generator.getTotalBytes() / (1024.0 * 1024.0);
+        // Throughput counts what the backup actually read, mails already in the output folder are skipped
+        long messagesRead = metrics.getMessagesRead();
+        double megabytesRead = metrics.getBytesFetched() / (1024.0 * 1024.0);
+        LOGGER.info("Settings: {}", settings);
+        LOGGER.info("Mailbox: {} messages, {} MB, seeded in {} ms", messages, String.format("%.1f", megabytes), seedMillis);
+        if (messagesRead < messages) {
+            LOGGER.warn("Only {} of {} messages were backed up, the others were already in {} or failed", messagesRead, messages, settings.getOutput());
+        }
+        LOGGER.info("Backup: {} ms, {} messages, {} messages/s, {} MB/s, {} files written, peak heap {} MB",
+                backupMillis,
+                messagesRead,
+                String.format("%.1f", messagesRead / seconds),
+                String.format("%.2f", megabytesRead / seconds),
+                metrics.getFilesWritten(),
+                getPeakHeap() / (1024 * 1024));
+        phaseTimes.forEach((phase, millis) -> LOGGER.info("Phase {}: {} ms", phase, millis));
+    }
+
+    private static int getInt(CommandLine commandLine, String option, int defaultValue) {
+        return Optional.ofNullable(commandLine.getOptionValue(option)).map(Integer::parseInt).orElse(defaultValue);
+    }
+
+    private static void resetPeakHeap() {
+        getHeapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    private static long getPeakHeap() {
+        // Sum of the pool peaks, an upper bound since the pools peak at different times
+        return getHeapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .collect(Collectors.toList());
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            FileUtils.deleteDirectory(path.toFile());
+        } catch (IOException exception) {
+            LOGGER.warn("Could not delete {}: {}", path, exception.getMessage());
+        }
+    }
+
+}
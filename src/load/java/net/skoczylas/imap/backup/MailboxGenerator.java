@@ -0,0 +1,143 @@
+package net.skoczylas.imap.backup;
+
+import com.icegreen.greenmail.imap.AuthorizationException;
+import com.icegreen.greenmail.imap.ImapHostManager;
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
+import jakarta.activation.DataHandler;
+import jakarta.mail.Flags;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+class MailboxGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailboxGenerator.class);
+
+    private static final LocalDateTime FIRST_DATE = LocalDateTime.of(2015, 1, 1, 0, 0);
+    private static final long DATE_RANGE_SECONDS = 6L * 365 * 24 * 60 * 60;
+
+    private final Session session = Session.getInstance(new Properties());
+    private final Random random;
+    private final int folderCount;
+    private final int messageCount;
+    private final int minSize;
+    private final int maxSize;
+    private final double attachmentRatio;
+
+    private long totalBytes = 0;
+
+    MailboxGenerator(long seed, int folderCount, int messageCount, int minSize, int maxSize, double attachmentRatio) {
+        this.random = new Random(seed);
+        this.folderCount = Math.max(1, folderCount);
+        this.messageCount = messageCount;
+        this.minSize = Math.max(256, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.attachmentRatio = attachmentRatio;
+    }
+
+    void seed(ImapHostManager imapHostManager, GreenMailUser user) throws FolderException, AuthorizationException, MessagingException, IOException {
+        List<MailFolder> folders = new ArrayList<>();
+        folders.add(imapHostManager.getInbox(user));
+        for (int i = 1; i < folderCount; i++) {
+            folders.add(imapHostManager.createMailbox(user, String.format("Folder%03d", i)));
+        }
+
+        for (int i = 0; i < messageCount; i++) {
+            // The first folders get the most messages, like a real mailbox with a large INBOX
+            MailFolder folder = folders.get((int) (Math.pow(random.nextDouble(), 2) * folders.size()));
+            Date date = nextDate();
+            MimeMessage message = createMessage(i, date);
+            totalBytes += getSize(message);
+            folder.appendMessage(message, new Flags(), date);
+            if ((i + 1) % 1000 == 0) {
+                LOGGER.info("Seeded {} of {} messages", i + 1, messageCount);
+            }
+        }
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private MimeMessage createMessage(int index, Date date) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(String.format("sender%d@example.com", random.nextInt(100))));
+        message.setRecipients(Message.RecipientType.TO, new InternetAddress[]{new InternetAddress("load@localhost")});
+        message.setSubject(String.format("Load message %d", index));
+        message.setSentDate(date);
+
+        int size = nextSize();
+        if (random.nextDouble() < attachmentRatio) {
+            int textSize = Math.min(size, 2048);
+            MimeMultipart multipart = new MimeMultipart("mixed");
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(text(textSize));
+            multipart.addBodyPart(textPart);
+            byte[] content = new byte[Math.max(1, size - textSize)];
+            random.nextBytes(content);
+            MimeBodyPart attachment = new MimeBodyPart();
+            attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+            attachment.setFileName(String.format("attachment-%d.bin", index));
+            multipart.addBodyPart(attachment);
+            message.setContent(multipart);
+        } else {
+            message.setText(text(size));
+        }
+        message.saveChanges();
+        return message;
+    }
+
+    private int nextSize() {
+        // Log-uniform, most mails are small while a few are close to the maximum
+        double logMin = Math.log(minSize);
+        double logMax = Math.log(maxSize);
+        return (int) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+    }
+
+    private Date nextDate() {
+        long seconds = FIRST_DATE.toEpochSecond(ZoneOffset.UTC) + (long) (random.nextDouble() * DATE_RANGE_SECONDS);
+        return new Date(seconds * 1000);
+    }
+
+    private String text(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            if (builder.length() % 72 == 71) {
+                builder.append("\r\n");
+            } else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static long getSize(MimeMessage message) throws MessagingException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            message.writeTo(output);
+            return output.size();
+        } catch (IOException exception) {
+            throw new MessagingException("Could not measure message", exception);
+        }
+    }
+
+}
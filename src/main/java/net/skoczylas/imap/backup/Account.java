@@ -0,0 +1,71 @@
+package net.skoczylas.imap.backup;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+class Account {
+
+    private final String host;
+    private final String port;
+    private final boolean ssl;
+    private final String username;
+    private final String password;
+
+    Account(String host, String port, boolean ssl, String username, String password) {
+        this.host = host;
+        this.port = port;
+        this.ssl = ssl;
+        this.username = username;
+        this.password = password;
+    }
+
+    // One account per line: host port ssl|plain user password, the password is the rest of the line
+    static List<Account> read(Path file) throws IOException {
+        List<Account> accounts = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+", 5);
+            if (fields.length < 5 || StringUtils.isBlank(fields[4])) {
+                throw new IOException(String.format("Invalid account in line %d of %s", lineNumber, file));
+            }
+            accounts.add(new Account(fields[0], fields[1], "ssl".equalsIgnoreCase(fields[2]), fields[3], fields[4]));
+        }
+        return accounts;
+    }
+
+    Properties getProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("mail.imap.host", host);
+        properties.setProperty("mail.imap.port", port);
+        if (ssl) {
+            properties.setProperty("mail.imap.ssl.enable", "true");
+        }
+        return properties;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%s:%s", username, host, port);
+    }
+
+}
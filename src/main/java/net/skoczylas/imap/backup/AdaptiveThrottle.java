@@ -0,0 +1,182 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.util.FolderClosedIOException;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.StoreClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// AIMD control of the connections reading folders and the prefetch size: both grow by small steps while the server
+// keeps up and shrink by a factor when it gets slow, answers with BYE or NO or drops the connection
+class AdaptiveThrottle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveThrottle.class);
+
+    private static final Pattern THROTTLE_RESPONSE = Pattern.compile("(?i).*(throttl|too many|rate limit|try again|unavailable|overquota|bandwidth|\\[limit]|\\[inuse]).*", Pattern.DOTALL);
+
+    private static final int MIN_FETCH_SIZE = 50;
+    private static final int FETCH_SIZE_STEP = 50;
+    private static final int FETCHES_PER_INCREASE = 8;
+    // A prefetch slower than this multiple of the best observed one means the server is saturated
+    private static final double SLOW_FACTOR = 4.0;
+    private static final double BASELINE_DRIFT = 0.05;
+    private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final int maxConnections;
+    private final int maxFetchSize;
+    private final boolean adaptive;
+
+    private int connections;
+    private int fetchSize;
+    private int active = 0;
+    private int goodFetches = 0;
+    private double baselineNanos = 0;
+    private long backoffMillis = 0;
+    private long pausedUntil = 0;
+
+    AdaptiveThrottle(int maxConnections, int maxFetchSize, boolean adaptive) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxFetchSize = Math.max(1, maxFetchSize);
+        this.adaptive = adaptive;
+        // Starts with the configured values, they are also the upper limits
+        this.connections = this.maxConnections;
+        this.fetchSize = this.maxFetchSize;
+    }
+
+    // Waits for a connection slot, no new connection is used while the server asked to back off
+    synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long pause = TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime());
+            if (pause > 0) {
+                wait(pause);
+            } else if (active >= connections) {
+                wait();
+            } else {
+                active++;
+                return;
+            }
+        }
+    }
+
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    // A reader above the current limit gives its slot back between chunks and waits for a new one
+    synchronized boolean tryYield() {
+        if (active <= connections) {
+            return false;
+        }
+        active--;
+        notifyAll();
+        return true;
+    }
+
+    synchronized int getFetchSize() {
+        return fetchSize;
+    }
+
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    // Only the prefetch is measured, its cost does not depend on the size of the bodies read afterwards
+    synchronized void fetched(int messages, long startNanos) {
+        backoffMillis = 0;
+        // The last chunk of a folder is smaller, its fixed round trip would make it look slow
+        if (!adaptive || messages < fetchSize) {
+            return;
+        }
+        double nanos = (double) (System.nanoTime() - startNanos) / messages;
+        // The baseline follows faster fetches at once and slower ones only slowly
+        baselineNanos = baselineNanos == 0 || nanos < baselineNanos ? nanos : baselineNanos + (nanos - baselineNanos) * BASELINE_DRIFT;
+        if (nanos > baselineNanos * SLOW_FACTOR) {
+            goodFetches = 0;
+            // Readers only give up their connection between chunks, until then a lower limit shows no effect
+            if (active > connections) {
+                return;
+            }
+            // Slow answers mean too many parallel requests, the prefetch size is only reduced when the server throttles
+            int previous = connections;
+            connections = Math.max(1, (int) (connections * 0.75));
+            if (connections != previous) {
+                LOGGER.info("Backing off after slow responses, using {} connections", connections);
+            }
+        } else if (++goodFetches >= FETCHES_PER_INCREASE) {
+            goodFetches = 0;
+            increase();
+        }
+    }
+
+    // Returns how long the folder has to wait before it reconnects, the wait doubles with every throttle in a row
+    synchronized long throttled(Exception exception) {
+        // Dropped connections of the other readers belong to the same event and must not shrink the limits again
+        long pause = TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime());
+        if (pause > 0) {
+            return pause;
+        }
+        backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+        goodFetches = 0;
+        if (adaptive) {
+            decrease(exception.getClass().getSimpleName());
+        }
+        notifyAll();
+        return backoffMillis;
+    }
+
+    // Disconnects and throttling answers are worth a retry, failed logins are not, retrying them risks a locked account.
+    // Other I/O errors, like unknown charsets, fail the same way on every attempt
+    static boolean isRetryable(Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AuthenticationFailedException) {
+                return false;
+            }
+            if (cause instanceof FolderClosedException || cause instanceof StoreClosedException
+                    || cause instanceof ConnectionException || cause instanceof FolderClosedIOException
+                    || cause instanceof SocketException || cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause.getMessage() != null && THROTTLE_RESPONSE.matcher(cause.getMessage()).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void increase() {
+        if (connections >= maxConnections && fetchSize >= maxFetchSize) {
+            return;
+        }
+        connections = Math.min(maxConnections, connections + 1);
+        fetchSize = Math.min(maxFetchSize, fetchSize + FETCH_SIZE_STEP);
+        LOGGER.info("Server keeps up, using {} connections and a fetch size of {}", connections, fetchSize);
+        notifyAll();
+    }
+
+    private void decrease(String reason) {
+        connections = Math.max(1, connections / 2);
+        fetchSize = Math.max(Math.min(MIN_FETCH_SIZE, maxFetchSize), fetchSize / 2);
+        LOGGER.info("Backing off after {}, using {} connections and a fetch size of {}", reason, connections, fetchSize);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveThrottle{" +
+                "connections=" + connections +
+                ", fetchSize=" + fetchSize +
+                ", active=" + active +
+                ", backoffMillis=" + backoffMillis +
+                '}';
+    }
+
+}
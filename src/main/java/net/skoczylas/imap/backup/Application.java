@@ -6,35 +6,152 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class Application {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Application.class);
 
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final int VERIFY_FAILED_EXIT_CODE = 1;
+
     public static void main(String[] args) {
         Options options = new Options();
-        options.addRequiredOption("h", "host",true, "IMAP server (e.g. imap.gmx.net)");
-        options.addRequiredOption("u", "user",true, "Username");
-        options.addRequiredOption("p", "password",true, "Password");
+        options.addOption("h", "host",true, "IMAP server (e.g. imap.gmx.net)");
+        options.addOption("u", "user",true, "Username");
+        options.addOption("p", "password",true, "Password");
         options.addOption(null, "port",true, "Server port (default: 993)");
         options.addOption("s", "ssl",false, "Use SSL (default: SSL)");
         options.addOption("o", "output",true, String.format("Output folder, default: %s", System.getProperty("user.home")));
         options.addOption("t", "template",true, "Template (table or grid, table is default)");
+        options.addOption("f", "full",false, "Ignore checkpoints of previous runs and read all messages");
+        options.addOption("c", "connections",true, "Maximum parallel connections to the server (default: 1)");
+        options.addOption(null, "fetch-size",true, "Messages per prefetch of envelope and structure (default: 500)");
+        options.addOption(null, "writer-threads",true, "Threads writing files (default: 20)");
+        options.addOption(null, "writer-queue",true, "Pending writes before reading from the server pauses (default: 1000)");
+        options.addOption("d", "deduplicate",false, "Store identical attachments only once and hard link them into the mail folders");
+        options.addOption("a", "archive",false, "Append mails to compressed segments per folder and month instead of a folder per mail");
+        options.addOption(null, "raw",true, "Also export the original messages as mbox or maildir");
+        options.addOption(null, "raw-only",false, "Only export the original messages, skip decoding into files (requires --raw)");
+        options.addOption(null, "max-part-size",true, "Skip parts larger than the given number of bytes without downloading them");
+        options.addOption(null, "allow-types",true, "Only download parts of these types, comma separated (e.g. text/*,application/pdf)");
+        options.addOption(null, "deny-types",true, "Never download parts of these types, comma separated (e.g. video/*)");
+        options.addOption(null, "skip-inline-images",false, "Do not download images embedded in HTML mails");
+        options.addOption(null, "accounts",true, "File with one account per line (host port ssl|plain user password), backs up all of them");
+        options.addOption(null, "parallel-accounts",true, "Accounts backed up at the same time in batch mode (default: 4)");
+        options.addOption(null, "max-connections",true, "Maximum connections of all accounts together in batch mode (default: unlimited)");
+        options.addOption(null, "max-host-connections",true, "Maximum connections per server in batch mode (default: unlimited)");
+        options.addOption(null, "virtual-threads",false, "Run fetches and writes on virtual threads, limited by the thread counts (needs Java 21)");
+        options.addOption(null, "daemon",false, "Keep running after the backup and write new messages as they arrive");
+        options.addOption(null, "idle-folders",true, "Folders watched with IDLE in daemon mode, comma separated (default: INBOX)");
+        options.addOption(null, "poll-interval",true, "Seconds between checks of the other folders in daemon mode (default: 300)");
+        options.addOption(null, "since",true, "Only back up mails received on or after this day (yyyy-MM-dd or days back, e.g. 30d)");
+        options.addOption(null, "before",true, "Only back up mails received before this day (yyyy-MM-dd or days back, e.g. 365d)");
+        options.addOption(null, "min-size",true, "Only back up mails of at least the given number of bytes");
+        options.addOption(null, "max-size",true, "Only back up mails of at most the given number of bytes");
+        options.addOption(null, "flags",true, "Only back up mails with these flags, comma separated, ! negates (e.g. seen,!deleted)");
+        options.addOption(null, "include-folders",true, "Only back up folders matching these patterns, comma separated (e.g. INBOX,Projects/*)");
+        options.addOption(null, "exclude-folders",true, "Skip folders matching these patterns, comma separated (e.g. Trash,Spam,*/Archive*)");
+        options.addOption(null, "fixed-concurrency",false, "Keep connections and fetch size as configured instead of lowering them when the server throttles or slows down");
+        options.addOption(null, "durability",true, "When written files are synced to disk: none, message or batch (default: none)");
+        options.addOption(null, "index",false, "Build a full text search index of the mails while backing up");
+        options.addOption(null, "search",true, "Search the index, e.g. \"from:alice subject:invoice date:2021-03 report*\"");
+        options.addOption(null, "verify",false, "Compare the backup with the server without downloading mails and check the written files");
+        options.addOption("x", "extract",true, "Extract the mail with the given hash from the archive segments into <output>/extracted");
         try {
             CommandLineParser commandLineParser = new DefaultParser();
             CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption("x") || commandLine.hasOption("search")) {
+                if (!commandLine.hasOption("u")) {
+                    throw new MissingOptionException("Missing required option: u");
+                }
+                if (commandLine.hasOption("x")) {
+                    extract(commandLine);
+                } else {
+                    search(commandLine);
+                }
+                return;
+            }
+            if (!commandLine.hasOption("accounts") && (!commandLine.hasOption("h") || !commandLine.hasOption("u") || !commandLine.hasOption("p"))) {
+                throw new MissingOptionException("Missing required options: h, u, p");
+            }
+
+            BackupSettings settings = new BackupSettings();
+            Optional.ofNullable(commandLine.getOptionValue("o")).ifPresent(settings::setOutput);
+            Optional.ofNullable(commandLine.getOptionValue("t")).ifPresent(settings::setTemplate);
+            getNumber(commandLine, "connections", Integer::parseInt).ifPresent(settings::setConnections);
+            getNumber(commandLine, "fetch-size", Integer::parseInt).ifPresent(settings::setFetchSize);
+            getNumber(commandLine, "writer-threads", Integer::parseInt).ifPresent(settings::setWriterThreads);
+            getNumber(commandLine, "writer-queue", Integer::parseInt).ifPresent(settings::setWriterQueueCapacity);
+            settings.setFullBackup(commandLine.hasOption("f"));
+            settings.setDeduplicate(commandLine.hasOption("d"));
+            settings.setArchive(commandLine.hasOption("a"));
+            Optional.ofNullable(commandLine.getOptionValue("raw")).map(String::toLowerCase).ifPresent(settings::setRawFormat);
+            getNumber(commandLine, "max-part-size", Long::parseLong).ifPresent(settings::setMaxPartSize);
+            Optional.ofNullable(commandLine.getOptionValue("allow-types")).ifPresent(settings::setAllowedTypes);
+            Optional.ofNullable(commandLine.getOptionValue("deny-types")).ifPresent(settings::setDeniedTypes);
+            settings.setSkipInlineImages(commandLine.hasOption("skip-inline-images"));
+            if (commandLine.hasOption("raw-only") && settings.getRawFormat() == null) {
+                throw new ParseException("Option --raw-only requires --raw");
+            }
+            settings.setRawOnly(commandLine.hasOption("raw-only"));
+            getNumber(commandLine, "parallel-accounts", Integer::parseInt).ifPresent(settings::setParallelAccounts);
+            getNumber(commandLine, "max-connections", Integer::parseInt).ifPresent(settings::setMaxConnections);
+            getNumber(commandLine, "max-host-connections", Integer::parseInt).ifPresent(settings::setMaxHostConnections);
+            if (commandLine.hasOption("virtual-threads") && !VirtualThreads.isAvailable()) {
+                LOGGER.warn("Virtual threads are not available on Java {}, using platform threads", System.getProperty("java.version"));
+            }
+            settings.setVirtualThreads(commandLine.hasOption("virtual-threads") && VirtualThreads.isAvailable());
+            settings.setSearchIndex(commandLine.hasOption("index"));
+            Optional.ofNullable(commandLine.getOptionValue("since")).ifPresent(settings::setSince);
+            Optional.ofNullable(commandLine.getOptionValue("before")).ifPresent(settings::setBefore);
+            getNumber(commandLine, "min-size", Long::parseLong).ifPresent(settings::setMinSize);
+            getNumber(commandLine, "max-size", Long::parseLong).ifPresent(settings::setMaxSize);
+            Optional.ofNullable(commandLine.getOptionValue("flags")).ifPresent(settings::setFlags);
+            Optional.ofNullable(commandLine.getOptionValue("include-folders")).ifPresent(settings::setIncludedFolders);
+            Optional.ofNullable(commandLine.getOptionValue("exclude-folders")).ifPresent(settings::setExcludedFolders);
+            // Fails early on invalid dates instead of in every account
+            MessageFilter.of(settings);
+            settings.setAdaptiveConcurrency(!commandLine.hasOption("fixed-concurrency"));
+            Optional.ofNullable(commandLine.getOptionValue("durability")).map(value -> Durability.of(value).name().toLowerCase()).ifPresent(settings::setDurability);
+            settings.setDaemon(commandLine.hasOption("daemon"));
+            Optional.ofNullable(commandLine.getOptionValue("idle-folders")).ifPresent(settings::setIdleFolders);
+            getNumber(commandLine, "poll-interval", Integer::parseInt).ifPresent(settings::setPollInterval);
+
+            if (commandLine.hasOption("accounts")) {
+                if (settings.isDaemon()) {
+                    LOGGER.warn("Daemon mode is only supported for a single account, running a single pass");
+                    settings.setDaemon(false);
+                }
+                List<Account> accounts = Account.read(Paths.get(commandLine.getOptionValue("accounts")));
+                LOGGER.info("Info accounts={}, settings={}", accounts.size(), settings);
+                if (commandLine.hasOption("verify")) {
+                    boolean verified = true;
+                    for (Account account : accounts) {
+                        LOGGER.info("Verifying backup of {}", account);
+                        verified &= new BackupVerifier(Session.getInstance(account.getProperties()), settings, account.getUsername(), account.getPassword()).run();
+                    }
+                    exitIfNotVerified(verified);
+                    return;
+                }
+                new BatchBackup(settings, accounts).run();
+                return;
+            }
 
             String host = commandLine.getOptionValue("h");
             String port = Optional.ofNullable(commandLine.getOptionValue("port")).orElse("993");
             String username = commandLine.getOptionValue("u");
             String password = commandLine.getOptionValue("p");
-            String output = Optional.ofNullable(commandLine.getOptionValue("o")).orElse(System.getProperty("user.home"));
-            String template = Optional.ofNullable(commandLine.getOptionValue("t")).orElse("table");
             String useSSL = Optional.of(String.valueOf(options.hasOption("s"))).orElse("true");
 
-            LOGGER.info("Info server={}, port={}, ssl={}, user={}, output={}, template={}", host, port, options.hasOption("s"), username, output, template);
+            LOGGER.info("Info server={}, port={}, ssl={}, user={}, settings={}", host, port, options.hasOption("s"), username, settings);
 
             Properties properties = new Properties();
             properties.setProperty("mail.imap.host", host);
@@ -47,11 +164,24 @@ public class Application {
 
             Session session = Session.getDefaultInstance(properties);
 
-            ImapBackup imapBackup = new ImapBackup(session, output, template, username, password);
+            if (commandLine.hasOption("verify")) {
+                exitIfNotVerified(new BackupVerifier(session, settings, username, password).run());
+                return;
+            }
+
+            ImapBackup imapBackup = new ImapBackup(session, settings, username, password);
+            if (settings.isDaemon()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(imapBackup::stop, "shutdown"));
+            }
             imapBackup.run();
         } catch (IOException exception) {
             LOGGER.error("Could not start backup: {}", exception.getMessage());
+        } catch (NumberFormatException exception) {
+            LOGGER.error("Invalid number: {}", exception.getMessage());
+        } catch (IllegalArgumentException exception) {
+            LOGGER.error("Invalid option: {}", exception.getMessage());
         } catch (ParseException exception) {
+            LOGGER.error("{}", exception.getMessage());
             HelpFormatter formatter = new HelpFormatter();
             formatter.setWidth(240);
             formatter.printHelp("imap-backup", options);
@@ -59,4 +189,62 @@ public class Application {
 
     }
 
+    // Invalid numbers end in the usage like every other invalid option
+    private static <T> Optional<T> getNumber(CommandLine commandLine, String option, Function<String, T> parser) throws ParseException {
+        String value = commandLine.getOptionValue(option);
+        if (value == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(parser.apply(value.trim()));
+        } catch (NumberFormatException exception) {
+            throw new ParseException(String.format("Invalid number for --%s: %s", option, value));
+        }
+    }
+
+    // Scripts and schedulers running the verification only see the exit code
+    private static void exitIfNotVerified(boolean verified) {
+        if (!verified) {
+            LOGGER.error("Backup verification failed");
+            System.exit(VERIFY_FAILED_EXIT_CODE);
+        }
+    }
+
+    private static void extract(CommandLine commandLine) throws IOException {
+        String output = Optional.ofNullable(commandLine.getOptionValue("o")).orElse(System.getProperty("user.home"));
+        String hash = commandLine.getOptionValue("x");
+        Path accountPath = Paths.get(output, "imapBackup", Writer.normalize(commandLine.getOptionValue("u")));
+        try (ArchiveStore archiveStore = new ArchiveStore(accountPath)) {
+            int count = archiveStore.extract(hash, Paths.get(output, "extracted"));
+            LOGGER.info("Extracted {} files of mail {}", count, hash);
+        }
+    }
+
+    private static void search(CommandLine commandLine) throws IOException {
+        String output = Optional.ofNullable(commandLine.getOptionValue("o")).orElse(System.getProperty("user.home"));
+        String query = commandLine.getOptionValue("search");
+        Path accountPath = Paths.get(output, "imapBackup", Writer.normalize(commandLine.getOptionValue("u")));
+        if (!Files.isDirectory(accountPath.resolve(SearchIndex.FOLDER_NAME))) {
+            LOGGER.warn("No search index found in {}, run the backup with --index first", accountPath);
+            return;
+        }
+        long start = System.nanoTime();
+        long[] offsets = SearchIndex.search(accountPath, query);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // A backup of the account may be running, the index must not be changed from here
+        try (MailIndex mailIndex = MailIndex.openReadOnly(accountPath)) {
+            // Offsets grow with every backup run, so the newest mails come first
+            for (int index = offsets.length - 1; index >= Math.max(0, offsets.length - MAX_SEARCH_RESULTS); index--) {
+                try {
+                    MailInfo mailInfo = mailIndex.read(offsets[index]);
+                    LOGGER.info("{}  {}  {}  {}  {}", Utility.getDate(mailInfo.getReceivedAt()), mailInfo.getHash(),
+                            mailInfo.getFolderPath(), mailInfo.getFromList(), mailInfo.getSubject());
+                } catch (IOException exception) {
+                    LOGGER.warn("Skipping search result: {}", exception.getMessage());
+                }
+            }
+        }
+        LOGGER.info("Found {} mails for \"{}\" in {} ms", offsets.length, query, millis);
+    }
+
 }
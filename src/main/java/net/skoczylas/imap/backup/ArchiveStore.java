@@ -0,0 +1,254 @@
+package net.skoczylas.imap.backup;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class ArchiveStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveStore.class);
+
+    static final String SEGMENT_SUFFIX = ".seg.gz";
+    static final String INDEX_SUFFIX = ".seg.idx";
+
+    private static final DateTimeFormatter SEGMENT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM");
+    private static final int MAX_OPEN_SEGMENTS = 32;
+    private static final int MEMORY_THRESHOLD = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path accountPath;
+    private final Path tempFolder;
+    private final boolean durable;
+
+    // Least recently used segments are closed, so many folders and months do not exhaust file handles
+    private final Map<Path, Segment> segments = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Segment> eldest) {
+            if (size() > MAX_OPEN_SEGMENTS) {
+                // A later sync only reaches open segments, so a closed one has to be synced before
+                if (durable) {
+                    eldest.getValue().forceQuietly();
+                }
+                eldest.getValue().closeQuietly();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    ArchiveStore(Path accountPath) throws IOException {
+        this(accountPath, false);
+    }
+
+    ArchiveStore(Path accountPath, boolean durable) throws IOException {
+        this.accountPath = accountPath;
+        this.tempFolder = accountPath.resolve("tmp");
+        this.durable = durable;
+        Files.createDirectories(tempFolder);
+    }
+
+    long append(MailInfo mailInfo, String name, InputStream inputStream) throws IOException {
+        // Every entry is a gzip member of its own, compressing happens before the segment is locked
+        DeferredFileOutputStream compressed = new DeferredFileOutputStream(MEMORY_THRESHOLD, ".", ".part", tempFolder.toFile());
+        long size;
+        try (InputStream input = inputStream;
+             CountingInputStream counting = new CountingInputStream(input);
+             GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE)) {
+            counting.transferTo(gzip);
+            size = counting.getByteCount();
+        }
+        try {
+            write(getSegmentPath(mailInfo), mailInfo.getHash(), name, compressed);
+        } finally {
+            if (!compressed.isInMemory()) {
+                Files.deleteIfExists(compressed.getFile().toPath());
+            }
+        }
+        return size;
+    }
+
+    int extract(String hash, Path target) throws IOException {
+        int count = 0;
+        for (Path index : findIndexes()) {
+            for (Entry entry : readIndex(index)) {
+                if (entry.hash.equals(hash)) {
+                    extract(index, entry, target);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Syncs the segment the files of the mail were appended to
+    synchronized void force(MailInfo mailInfo) throws IOException {
+        Segment segment = segments.get(getSegmentPath(mailInfo));
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    synchronized void force() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments.values().forEach(Segment::closeQuietly);
+        segments.clear();
+    }
+
+    private synchronized void write(Path segmentPath, String hash, String name, DeferredFileOutputStream compressed) throws IOException {
+        Segment segment = segments.get(segmentPath);
+        if (segment == null) {
+            segment = new Segment(segmentPath);
+            segments.put(segmentPath, segment);
+        }
+        segment.append(hash, name, compressed);
+    }
+
+    // Name of the segment next to the folder of the mail, e.g. 2021-05.seg.gz
+    static String getSegmentName(MailInfo mailInfo) {
+        return SEGMENT_FORMATTER.format(mailInfo.getReceivedAt()) + SEGMENT_SUFFIX;
+    }
+
+    private Path getSegmentPath(MailInfo mailInfo) {
+        List<String> folder = new ArrayList<>(mailInfo.getFolder());
+        folder.add(SEGMENT_FORMATTER.format(mailInfo.getReceivedAt()));
+        return Paths.get(accountPath.toString(), folder.toArray(new String[0]));
+    }
+
+    private List<Path> findIndexes() throws IOException {
+        try (Stream<Path> files = Files.walk(accountPath)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(INDEX_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<Entry> readIndex(Path index) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            if (parts.length != 4) {
+                LOGGER.warn("Ignoring invalid index entry in {}: {}", index, line);
+                continue;
+            }
+            entries.add(new Entry(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+        }
+        return entries;
+    }
+
+    private void extract(Path index, Entry entry, Path target) throws IOException {
+        String indexName = index.getFileName().toString();
+        Path segmentFile = index.resolveSibling(indexName.substring(0, indexName.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX);
+        Path file = target.resolve(entry.hash).resolve(Writer.normalize(entry.name));
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ);
+             InputStream input = new GZIPInputStream(new BoundedInputStream(Channels.newInputStream(channel.position(entry.offset)), entry.length), BUFFER_SIZE)) {
+            Files.copy(input, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        LOGGER.info("Extracted {}", file);
+    }
+
+    private static class Segment {
+
+        private final Path segmentFile;
+        private final FileChannel data;
+        private final FileChannel index;
+
+        // New files also need their directory entries synced
+        private boolean created;
+
+        Segment(Path segmentPath) throws IOException {
+            Files.createDirectories(segmentPath.getParent());
+            String name = segmentPath.getFileName().toString();
+            this.segmentFile = segmentPath.resolveSibling(name + SEGMENT_SUFFIX);
+            this.created = !Files.exists(segmentFile);
+            this.data = FileChannel.open(segmentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.index = FileChannel.open(segmentPath.resolveSibling(name + INDEX_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        void append(String hash, String name, DeferredFileOutputStream compressed) throws IOException {
+            long offset = data.size();
+            compressed.writeTo(Channels.newOutputStream(data));
+            long length = data.size() - offset;
+            // The index is written after the data, an entry never points to a partial member
+            String entry = String.format("%s\t%s\t%d\t%d%n", hash, name.replace('\t', ' '), offset, length);
+            ByteBuffer buffer = ByteBuffer.wrap(entry.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                index.write(buffer);
+            }
+        }
+
+        // The data goes first, a synced index entry must not point to data that can still be lost
+        void force() throws IOException {
+            data.force(false);
+            index.force(false);
+            if (created) {
+                // Directories can not be opened for syncing on every platform
+                try (FileChannel directory = FileChannel.open(segmentFile.getParent(), StandardOpenOption.READ)) {
+                    directory.force(true);
+                } catch (IOException exception) {
+                    LOGGER.debug("Could not sync directory {}: {}", segmentFile.getParent(), exception.getMessage());
+                }
+                created = false;
+            }
+        }
+
+        void forceQuietly() {
+            try {
+                force();
+            } catch (IOException exception) {
+                LOGGER.warn("Could not sync segment {}: {}", segmentFile, exception.getMessage());
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                data.close();
+                index.close();
+            } catch (IOException exception) {
+                LOGGER.warn("Could not close segment {}: {}", segmentFile, exception.getMessage());
+            }
+        }
+
+    }
+
+    private static class Entry {
+
+        private final String hash;
+        private final String name;
+        private final long offset;
+        private final long length;
+
+        Entry(String hash, String name, long offset, long length) {
+            this.hash = hash;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
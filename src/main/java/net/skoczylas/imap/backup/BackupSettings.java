@@ -0,0 +1,331 @@
+package net.skoczylas.imap.backup;
+
+public class BackupSettings {
+
+    private String output = System.getProperty("user.home");
+    private String template = "table";
+    private boolean fullBackup = false;
+    private int connections = 1;
+    private int fetchSize = 500;
+    private int writerThreads = 20;
+    private int writerQueueCapacity = 1000;
+    private boolean deduplicate = false;
+    private boolean archive = false;
+    private String rawFormat = null;
+    private boolean rawOnly = false;
+    private long maxPartSize = 0;
+    private String allowedTypes = null;
+    private String deniedTypes = null;
+    private boolean skipInlineImages = false;
+    private int maxConnections = 0;
+    private int maxHostConnections = 0;
+    private int parallelAccounts = 4;
+    private boolean virtualThreads = false;
+    private boolean daemon = false;
+    private String idleFolders = "INBOX";
+    private int pollInterval = 300;
+    private boolean searchIndex = false;
+    private String durability = "none";
+    private String since = null;
+    private String before = null;
+    private long minSize = 0;
+    private long maxSize = 0;
+    private String flags = null;
+    private String includedFolders = null;
+    private String excludedFolders = null;
+    private boolean adaptiveConcurrency = true;
+
+    public String getOutput() {
+        return output;
+    }
+
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(String template) {
+        this.template = template;
+    }
+
+    public boolean isFullBackup() {
+        return fullBackup;
+    }
+
+    public void setFullBackup(boolean fullBackup) {
+        this.fullBackup = fullBackup;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    public int getWriterQueueCapacity() {
+        return writerQueueCapacity;
+    }
+
+    public void setWriterQueueCapacity(int writerQueueCapacity) {
+        this.writerQueueCapacity = writerQueueCapacity;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isArchive() {
+        return archive;
+    }
+
+    public void setArchive(boolean archive) {
+        this.archive = archive;
+    }
+
+    public String getRawFormat() {
+        return rawFormat;
+    }
+
+    public void setRawFormat(String rawFormat) {
+        this.rawFormat = rawFormat;
+    }
+
+    public boolean isRawOnly() {
+        return rawOnly;
+    }
+
+    public void setRawOnly(boolean rawOnly) {
+        this.rawOnly = rawOnly;
+    }
+
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    public void setMaxPartSize(long maxPartSize) {
+        this.maxPartSize = maxPartSize;
+    }
+
+    public String getAllowedTypes() {
+        return allowedTypes;
+    }
+
+    public void setAllowedTypes(String allowedTypes) {
+        this.allowedTypes = allowedTypes;
+    }
+
+    public String getDeniedTypes() {
+        return deniedTypes;
+    }
+
+    public void setDeniedTypes(String deniedTypes) {
+        this.deniedTypes = deniedTypes;
+    }
+
+    public boolean isSkipInlineImages() {
+        return skipInlineImages;
+    }
+
+    public void setSkipInlineImages(boolean skipInlineImages) {
+        this.skipInlineImages = skipInlineImages;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxHostConnections() {
+        return maxHostConnections;
+    }
+
+    public void setMaxHostConnections(int maxHostConnections) {
+        this.maxHostConnections = maxHostConnections;
+    }
+
+    public int getParallelAccounts() {
+        return parallelAccounts;
+    }
+
+    public void setParallelAccounts(int parallelAccounts) {
+        this.parallelAccounts = parallelAccounts;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public String getIdleFolders() {
+        return idleFolders;
+    }
+
+    public void setIdleFolders(String idleFolders) {
+        this.idleFolders = idleFolders;
+    }
+
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public boolean isSearchIndex() {
+        return searchIndex;
+    }
+
+    public void setSearchIndex(boolean searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String durability) {
+        this.durability = durability;
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    public void setSince(String since) {
+        this.since = since;
+    }
+
+    public String getBefore() {
+        return before;
+    }
+
+    public void setBefore(String before) {
+        this.before = before;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String getFlags() {
+        return flags;
+    }
+
+    public void setFlags(String flags) {
+        this.flags = flags;
+    }
+
+    public String getIncludedFolders() {
+        return includedFolders;
+    }
+
+    public void setIncludedFolders(String includedFolders) {
+        this.includedFolders = includedFolders;
+    }
+
+    public String getExcludedFolders() {
+        return excludedFolders;
+    }
+
+    public void setExcludedFolders(String excludedFolders) {
+        this.excludedFolders = excludedFolders;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    @Override
+    public String toString() {
+        return "BackupSettings{" +
+                "output='" + output + '\'' +
+                ", template='" + template + '\'' +
+                ", fullBackup=" + fullBackup +
+                ", connections=" + connections +
+                ", fetchSize=" + fetchSize +
+                ", writerThreads=" + writerThreads +
+                ", writerQueueCapacity=" + writerQueueCapacity +
+                ", deduplicate=" + deduplicate +
+                ", archive=" + archive +
+                ", rawFormat='" + rawFormat + '\'' +
+                ", rawOnly=" + rawOnly +
+                ", maxPartSize=" + maxPartSize +
+                ", allowedTypes='" + allowedTypes + '\'' +
+                ", deniedTypes='" + deniedTypes + '\'' +
+                ", skipInlineImages=" + skipInlineImages +
+                ", maxConnections=" + maxConnections +
+                ", maxHostConnections=" + maxHostConnections +
+                ", parallelAccounts=" + parallelAccounts +
+                ", virtualThreads=" + virtualThreads +
+                ", daemon=" + daemon +
+                ", idleFolders='" + idleFolders + '\'' +
+                ", pollInterval=" + pollInterval +
+                ", searchIndex=" + searchIndex +
+                ", durability='" + durability + '\'' +
+                ", since='" + since + '\'' +
+                ", before='" + before + '\'' +
+                ", minSize=" + minSize +
+                ", maxSize=" + maxSize +
+                ", flags='" + flags + '\'' +
+                ", includedFolders='" + includedFolders + '\'' +
+                ", excludedFolders='" + excludedFolders + '\'' +
+                ", adaptiveConcurrency=" + adaptiveConcurrency +
+                '}';
+    }
+}
@@ -0,0 +1,289 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.imap.IMAPFolder;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.SearchTerm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// Compares the server with the backup using envelopes only, no message body is downloaded
+class BackupVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupVerifier.class);
+
+    private static final Pattern YEAR_FOLDER = Pattern.compile("\\d{4}");
+    private static final Pattern DAY_FOLDER = Pattern.compile("\\d{2}_\\d{2}");
+    private static final Pattern MAIL_FOLDER = Pattern.compile("[0-9a-f]{64}");
+    private static final int CHECK_QUEUE_CAPACITY = 1000;
+
+    private final StorePool storePool;
+    private final MessageFilter messageFilter;
+    private final Path accountPath;
+    private final boolean archive;
+    private final int connections;
+    private final int fetchSize;
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder unchecked = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder missingBytes = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder extra = new LongAdder();
+
+    private Map<String, List<MailManifest.Entry>> manifest;
+    private Stage checkStage;
+
+    BackupVerifier(Session session, BackupSettings settings, String username, String password) {
+        this.storePool = new StorePool(session, username, password, settings.getConnections(), ConnectionLimiter.unlimited());
+        this.messageFilter = MessageFilter.of(settings);
+        this.accountPath = Paths.get(settings.getOutput(), "imapBackup", Writer.normalize(username));
+        this.archive = settings.isArchive();
+        this.connections = Math.max(1, settings.getConnections());
+        this.fetchSize = Math.max(1, settings.getFetchSize());
+    }
+
+    // Returns true if every mail on the server was found complete and nothing else is in the backup
+    boolean run() {
+        if (archive) {
+            LOGGER.warn("Verifying archive segments is not supported, only backups with a folder per mail");
+            return false;
+        }
+        if (!Files.isDirectory(accountPath)) {
+            LOGGER.warn("No backup found in {}", accountPath);
+            return false;
+        }
+        long start = System.nanoTime();
+        Stage fetchStage = null;
+        try {
+            manifest = MailManifest.load(accountPath);
+            List<String> folderNames = getFolderNames();
+            fetchStage = new Stage("verify", connections, folderNames.size());
+            // Checksums are calculated on all cores while the next envelopes are fetched
+            checkStage = new Stage("check", Runtime.getRuntime().availableProcessors(), CHECK_QUEUE_CAPACITY);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (String folderName : folderNames) {
+                futures.add(fetchStage.submit(() -> verifyFolder(folderName)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .exceptionally(exception -> {
+                        LOGGER.error("Verification failed: {}", exception.getMessage());
+                        return null;
+                    })
+                    .join();
+            checkStage.shutdown();
+        } catch (IOException | MessagingException exception) {
+            LOGGER.error("Could not verify backup: {}", exception.getMessage());
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (fetchStage != null) {
+                fetchStage.shutdownNow();
+            }
+            if (checkStage != null) {
+                checkStage.shutdownNow();
+            }
+            storePool.close();
+        }
+        LOGGER.info("Verified {} mails in {} ms: {} complete, {} present without checksums, {} missing ({} bytes), {} truncated, {} corrupt, {} not on the server",
+                verified.sum() + unchecked.sum() + missing.sum() + truncated.sum() + corrupt.sum(), (System.nanoTime() - start) / 1_000_000,
+                verified.sum(), unchecked.sum(), missing.sum(), missingBytes.sum(), truncated.sum(), corrupt.sum(), extra.sum());
+        return missing.sum() == 0 && truncated.sum() == 0 && corrupt.sum() == 0 && extra.sum() == 0;
+    }
+
+    private List<String> getFolderNames() throws MessagingException, InterruptedException {
+        Store store = storePool.acquire();
+        try {
+            List<String> folderNames = new ArrayList<>();
+            for (Folder folder : store.getDefaultFolder().list("*")) {
+                if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0 && messageFilter.includes(folder.getFullName())) {
+                    folderNames.add(folder.getFullName());
+                }
+            }
+            return folderNames;
+        } finally {
+            storePool.release(store);
+        }
+    }
+
+    private void verifyFolder(String folderName) {
+        Store store = null;
+        Folder folder = null;
+        try {
+            store = storePool.acquire();
+            folder = store.getFolder(folderName);
+            folder.open(Folder.READ_ONLY);
+            Deque<String> folderNames = ImapBackup.getFolderNames(folder);
+            Optional<SearchTerm> searchTerm = messageFilter.getSearchTerm();
+            Message[] messages = searchTerm.isPresent() ? folder.search(searchTerm.get()) : folder.getMessages();
+            LOGGER.info("Verifying {} messages of {}", messages.length, folderName);
+
+            Set<String> hashes = new HashSet<>();
+            List<CompletableFuture<Void>> checks = new ArrayList<>();
+            for (int start = 0; start < messages.length; start += fetchSize) {
+                Message[] chunk = Arrays.copyOfRange(messages, start, Math.min(start + fetchSize, messages.length));
+                fetch(folder, chunk);
+                for (Message message : chunk) {
+                    Optional<String> hash = getHash(folderNames, message).filter(hashes::add);
+                    if (hash.isPresent()) {
+                        // Messages are only read here, the checks work on the files alone
+                        LocalDateTime receivedDate = Utility.convertToLocalDateTimeViaInstant(message.getReceivedDate());
+                        Path path = accountPath.resolve(Writer.getMailPath(folderNames, receivedDate, hash.get()));
+                        int size = message.getSize();
+                        String description = String.format("%s  UID %s  %s  %s  %s", folderName, getUid(folder, message), Utility.getDate(receivedDate),
+                                Optional.ofNullable(((MimeMessage) message).getMessageID()).orElse("-"), Utility.getSubject(message).orElse("No subject"));
+                        checks.add(checkStage.submit(() -> check(path, hash.get(), size, description)));
+                    }
+                }
+                checks.removeIf(CompletableFuture::isDone);
+            }
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).handle((result, exception) -> result).join();
+            if (searchTerm.isPresent()) {
+                LOGGER.info("Skipping the search for mails deleted on the server in {}, a message filter is active", folderName);
+            } else {
+                findExtraMails(folderNames, hashes);
+            }
+        } catch (MessagingException exception) {
+            LOGGER.error("Could not verify folder {}: {}", folderName, exception.getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(folder);
+            storePool.release(store);
+        }
+    }
+
+    // ENVELOPE holds everything the mail folder is named after, INTERNALDATE, size and UID come with it
+    private void fetch(Folder folder, Message[] messages) throws MessagingException {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.SIZE);
+        fetchProfile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, fetchProfile);
+    }
+
+    // Same hash as the backup, messages it could not read are not expected in the backup either
+    private Optional<String> getHash(Deque<String> folderNames, Message message) {
+        try {
+            if (Utility.getMimeType(message.getContentType()).isEmpty()) {
+                return Optional.empty();
+            }
+            String subject = Utility.getSubject(message).orElse("No subject");
+            List<MailAddress> from = Utility.getAddresses(message.getFrom());
+            List<MailAddress> to = Utility.getAddresses(message.getAllRecipients());
+            LocalDateTime receivedDate = Utility.convertToLocalDateTimeViaInstant(message.getReceivedDate());
+            return Optional.of(MailInfo.getHash(folderNames, from, to, subject, receivedDate));
+        } catch (MessagingException exception) {
+            LOGGER.warn("Could not read envelope of message {}: {}", message.getMessageNumber(), exception.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void check(Path path, String hash, int size, String description) {
+        try {
+            if (!Files.isDirectory(path)) {
+                missing.increment();
+                missingBytes.add(Math.max(0, size));
+                LOGGER.warn("missing    {}", description);
+                return;
+            }
+            List<MailManifest.Entry> files = manifest.get(hash);
+            if (files == null) {
+                // Written before the manifest existed, only its folder can be checked
+                unchecked.increment();
+                return;
+            }
+            // Deduplicated attachments that could not be hard linked are only listed in the folder and live in the blob store
+            Map<String, Path> blobs = BlobStore.readManifest(path);
+            for (MailManifest.Entry file : files) {
+                Path filePath = blobs.getOrDefault(file.getName(), path.resolve(file.getName()));
+                if (!Files.exists(filePath) || Files.size(filePath) != file.getLength()) {
+                    truncated.increment();
+                    LOGGER.warn("truncated  {}", accountPath.relativize(path.resolve(file.getName())));
+                    return;
+                }
+                if (MailManifest.checksum(filePath).getChecksum() != file.getChecksum()) {
+                    corrupt.increment();
+                    LOGGER.warn("corrupt    {}", accountPath.relativize(path.resolve(file.getName())));
+                    return;
+                }
+            }
+            verified.increment();
+        } catch (IOException exception) {
+            LOGGER.error("Could not check mail {}: {}", hash, exception.getMessage());
+            corrupt.increment();
+        }
+    }
+
+    private String getUid(Folder folder, Message message) throws MessagingException {
+        return folder instanceof UIDFolder ? String.valueOf(((UIDFolder) folder).getUID(message)) : "-";
+    }
+
+    // Mail folders below <folder>/<year>/<month_day> that no message on the server maps to
+    private void findExtraMails(Deque<String> folderNames, Set<String> hashes) {
+        Path folderPath = accountPath.resolve(Paths.get("", folderNames.toArray(new String[0])));
+        for (Path yearFolder : list(folderPath, YEAR_FOLDER)) {
+            for (Path dayFolder : list(yearFolder, DAY_FOLDER)) {
+                for (Path mailFolder : list(dayFolder, MAIL_FOLDER)) {
+                    if (!hashes.contains(mailFolder.getFileName().toString())) {
+                        extra.increment();
+                        LOGGER.warn("extra      {}", accountPath.relativize(mailFolder));
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Path> list(Path folder, Pattern pattern) {
+        List<Path> folders = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return folders;
+        }
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder, path -> Files.isDirectory(path) && pattern.matcher(path.getFileName().toString()).matches())) {
+            paths.forEach(folders::add);
+        } catch (IOException exception) {
+            LOGGER.error("Could not list {}: {}", folder, exception.getMessage());
+        }
+        return folders;
+    }
+
+    private void close(Folder folder) {
+        try {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
+        } catch (MessagingException exception) {
+            LOGGER.warn("Could not close folder {}: {}", folder.getFullName(), exception.getMessage());
+        }
+    }
+
+}
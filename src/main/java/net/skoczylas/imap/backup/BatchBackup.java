@@ -0,0 +1,67 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.mail.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BatchBackup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchBackup.class);
+
+    private final BackupSettings settings;
+    private final List<Account> accounts;
+    private final WriterPool writerPool;
+    private final ConnectionLimiter connectionLimiter;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    BatchBackup(BackupSettings settings, List<Account> accounts) {
+        this.settings = settings;
+        this.accounts = accounts;
+        this.writerPool = new WriterPool(settings);
+        this.connectionLimiter = new ConnectionLimiter(settings.getMaxConnections(), settings.getMaxHostConnections());
+    }
+
+    // All accounts share one write stage and scheduler, so the thread count does not grow with the number of accounts
+    boolean run() {
+        LOGGER.info("Backing up {} accounts, {} in parallel", accounts.size(), settings.getParallelAccounts());
+        Stage accountStage = new Stage("account", settings.getParallelAccounts(), accounts.size(), settings.isVirtualThreads());
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Account account : accounts) {
+                futures.add(accountStage.submit(() -> backup(account)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((result, exception) -> result).join();
+        } finally {
+            accountStage.shutdown();
+            writerPool.shutdown();
+        }
+        LOGGER.info("Batch finished: {} accounts succeeded, {} failed", succeeded.get(), failed.get());
+        return failed.get() == 0;
+    }
+
+    private void backup(Account account) {
+        LOGGER.info("Starting backup of {}", account);
+        try {
+            Session session = Session.getInstance(account.getProperties());
+            ImapBackup imapBackup = new ImapBackup(session, settings, account.getUsername(), account.getPassword(), writerPool, connectionLimiter);
+            if (imapBackup.run()) {
+                succeeded.incrementAndGet();
+                return;
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not start backup of {}: {}", account, exception.getMessage());
+        } catch (RuntimeException exception) {
+            LOGGER.error("Backup of {} failed: {}", account, exception.getMessage());
+        }
+        LOGGER.warn("Backup of {} failed", account);
+        failed.incrementAndGet();
+    }
+
+}
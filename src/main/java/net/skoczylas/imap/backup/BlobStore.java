@@ -0,0 +1,128 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+class BlobStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+
+    static final String MANIFEST_FILE = "blobs.manifest";
+
+    private final Path root;
+    private final Path tempFolder;
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    BlobStore(Path root) throws IOException {
+        this.root = root;
+        this.tempFolder = root.resolve("tmp");
+        Files.createDirectories(tempFolder);
+    }
+
+    Path getTempFolder() {
+        return tempFolder;
+    }
+
+    Path add(Path tempFile, String sha256) throws IOException {
+        Path blob = root.resolve(sha256.substring(0, 2)).resolve(sha256);
+        if (Files.exists(blob)) {
+            savedBytes.add(Files.size(tempFile));
+            duplicates.increment();
+            Files.delete(tempFile);
+            return blob;
+        }
+        Files.createDirectories(blob.getParent());
+        // A rename replaces an existing blob silently, a link fails if another writer stored the same content first
+        try {
+            Files.createLink(blob, tempFile);
+        } catch (FileAlreadyExistsException exception) {
+            savedBytes.add(Files.size(tempFile));
+            duplicates.increment();
+            Files.delete(tempFile);
+            return blob;
+        } catch (UnsupportedOperationException | FileSystemException exception) {
+            moveIfAbsent(tempFile, blob);
+            return blob;
+        }
+        Files.delete(tempFile);
+        stored.increment();
+        return blob;
+    }
+
+    // Without hard links only the writers of this store are serialized, accounts sharing the blobs may still race
+    private synchronized void moveIfAbsent(Path tempFile, Path blob) throws IOException {
+        if (Files.exists(blob)) {
+            savedBytes.add(Files.size(tempFile));
+            duplicates.increment();
+            Files.delete(tempFile);
+            return;
+        }
+        try {
+            Files.move(tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(tempFile, blob);
+        }
+        stored.increment();
+    }
+
+    void link(Path blob, Path file) throws IOException {
+        try {
+            Files.createLink(file, blob);
+        } catch (FileAlreadyExistsException exception) {
+            throw exception;
+        } catch (UnsupportedOperationException | FileSystemException exception) {
+            LOGGER.debug("Could not link {}, adding manifest entry: {}", file.getFileName(), exception.getMessage());
+            addManifestEntry(blob, file);
+        }
+    }
+
+    private synchronized void addManifestEntry(Path blob, Path file) throws IOException {
+        Path manifest = file.resolveSibling(MANIFEST_FILE);
+        String entry = String.format("%s\t%s%n", file.getFileName(), file.getParent().relativize(blob));
+        Files.writeString(manifest, entry, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // Files of a mail folder that could not be linked, mapped to their blobs
+    static Map<String, Path> readManifest(Path folder) throws IOException {
+        Path manifest = folder.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifest)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Path> blobs = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 2) {
+                    LOGGER.warn("Ignoring invalid manifest entry in {}: {}", manifest, line);
+                    continue;
+                }
+                blobs.put(parts[0], folder.resolve(parts[1]).normalize());
+            }
+        }
+        return blobs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Blob store: stored=%d, duplicates=%d, saved=%d bytes", stored.sum(), duplicates.sum(), savedBytes.sum());
+    }
+
+}
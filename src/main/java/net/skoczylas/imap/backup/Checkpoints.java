@@ -0,0 +1,107 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+
+class Checkpoints {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Checkpoints.class);
+
+    static final String FILE_NAME = "checkpoints.properties";
+
+    private final Path file;
+    private final Properties properties = new Properties();
+    private final boolean persistent;
+
+    Checkpoints(Path accountPath) throws IOException {
+        this(accountPath, true);
+    }
+
+    // Checkpoints that are not persistent only last for the run, e.g. to keep a daemon from reading the same mails again
+    Checkpoints(Path accountPath, boolean persistent) throws IOException {
+        this.file = accountPath.resolve(FILE_NAME);
+        this.persistent = persistent;
+        if (Files.exists(file)) {
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                properties.load(inputStream);
+            }
+            LOGGER.info("Loaded {} folder checkpoints", properties.size());
+        }
+    }
+
+    synchronized Optional<Checkpoint> get(String folderName) {
+        return Optional.ofNullable(properties.getProperty(folderName))
+                .flatMap(Checkpoints::parse);
+    }
+
+    // After a UIDVALIDITY change the old UIDs point to other mails, the folder starts over
+    synchronized Optional<Long> getLastUid(String folderName, long uidValidity) {
+        return get(folderName)
+                .filter(checkpoint -> checkpoint.getUidValidity() == uidValidity)
+                .map(Checkpoint::getLastUid);
+    }
+
+    synchronized void update(String folderName, long uidValidity, long lastUid) {
+        properties.setProperty(folderName, String.format("%d,%d", uidValidity, lastUid));
+        if (persistent) {
+            save();
+        }
+    }
+
+    private void save() {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                properties.store(outputStream, "UIDVALIDITY,last UID per folder");
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            LOGGER.error("Could not write checkpoints {}: {}", file, exception.getMessage());
+        }
+    }
+
+    private static Optional<Checkpoint> parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 2) {
+            LOGGER.warn("Ignoring invalid checkpoint: {}", value);
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new Checkpoint(Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim())));
+        } catch (NumberFormatException exception) {
+            LOGGER.warn("Ignoring invalid checkpoint: {}", value);
+            return Optional.empty();
+        }
+    }
+
+    static class Checkpoint {
+
+        private final long uidValidity;
+        private final long lastUid;
+
+        Checkpoint(long uidValidity, long lastUid) {
+            this.uidValidity = uidValidity;
+            this.lastUid = lastUid;
+        }
+
+        long getUidValidity() {
+            return uidValidity;
+        }
+
+        long getLastUid() {
+            return lastUid;
+        }
+
+    }
+
+}
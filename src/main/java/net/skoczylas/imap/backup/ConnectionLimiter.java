@@ -0,0 +1,71 @@
+package net.skoczylas.imap.backup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+class ConnectionLimiter {
+
+    private final Semaphore total;
+    private final int perHost;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    // Limits of 0 or less mean unlimited, fair semaphores hand out connections in request order
+    ConnectionLimiter(int maxConnections, int maxHostConnections) {
+        this.total = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+        this.perHost = maxHostConnections;
+    }
+
+    static ConnectionLimiter unlimited() {
+        return new ConnectionLimiter(0, 0);
+    }
+
+    void acquire(String host) throws InterruptedException {
+        Semaphore hostSemaphore = getHostSemaphore(host);
+        if (hostSemaphore != null) {
+            hostSemaphore.acquire();
+        }
+        if (total != null) {
+            try {
+                total.acquire();
+            } catch (InterruptedException exception) {
+                if (hostSemaphore != null) {
+                    hostSemaphore.release();
+                }
+                throw exception;
+            }
+        }
+    }
+
+    boolean tryAcquire(String host) {
+        Semaphore hostSemaphore = getHostSemaphore(host);
+        if (hostSemaphore != null && !hostSemaphore.tryAcquire()) {
+            return false;
+        }
+        if (total != null && !total.tryAcquire()) {
+            if (hostSemaphore != null) {
+                hostSemaphore.release();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    void release(String host) {
+        if (total != null) {
+            total.release();
+        }
+        Semaphore hostSemaphore = getHostSemaphore(host);
+        if (hostSemaphore != null) {
+            hostSemaphore.release();
+        }
+    }
+
+    private Semaphore getHostSemaphore(String host) {
+        if (perHost <= 0) {
+            return null;
+        }
+        return hosts.computeIfAbsent(String.valueOf(host).toLowerCase(), name -> new Semaphore(perHost, true));
+    }
+
+}
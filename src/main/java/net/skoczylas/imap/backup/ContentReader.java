@@ -0,0 +1,200 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.util.BASE64DecoderStream;
+import jakarta.activation.MimeType;
+import jakarta.mail.BodyPart;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.tika.mime.MimeTypeException;
+import org.apache.tika.mime.MimeTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.UUID;
+
+class ContentReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentReader.class);
+
+    private final Writer writer;
+    private final PartFilter partFilter;
+    private final Metrics metrics;
+
+    ContentReader(Writer writer, PartFilter partFilter, Metrics metrics) {
+        this.writer = writer;
+        this.partFilter = partFilter;
+        this.metrics = metrics;
+    }
+
+    // Throws only if the connection was lost, any other unreadable part is logged and skipped
+    boolean readPart(Part part, MimeType mimeType, MailInfo mailInfo) throws MessagingException {
+        if (isSkipped(part, mimeType, mailInfo)) {
+            return true;
+        }
+        Optional<Object> content = Utility.getContent(part);
+        if (content.isPresent()) {
+            read(content.get(), mimeType, mailInfo);
+        }
+        return content.isPresent();
+    }
+
+    void read(Object content, MimeType mimeType, MailInfo mailInfo) throws MessagingException {
+        readContent(content, mimeType, mailInfo, null);
+    }
+
+    private void readContent(Object content, MimeType mimeType, MailInfo mailInfo, String nameFromParent) throws MessagingException {
+        if (mimeType == null) {
+            LOGGER.warn("Skipping content, no mime type found");
+            return;
+        }
+        LOGGER.debug("Reading content with type={}", mimeType);
+        if (content instanceof MimeMultipart) {
+            handleMultipart((MimeMultipart) content, mailInfo);
+        } else if (content instanceof BASE64DecoderStream) {
+            handleBASE64DecoderStream((BASE64DecoderStream) content, mimeType, mailInfo);
+        } else if (content instanceof MimeMessage) {
+            handleNestedMessage((MimeMessage) content, mimeType, mailInfo);
+        } else if ("text".equals(mimeType.getPrimaryType()) && "plain".equals(mimeType.getSubType())) {
+            writer.indexText(mailInfo, String.valueOf(content), false);
+            handlePlain(String.valueOf(content), nameFromParent, mailInfo, "mail_content.txt");
+        } else if ("text".equals(mimeType.getPrimaryType()) && "html".equals(mimeType.getSubType())) {
+            writer.indexText(mailInfo, String.valueOf(content), true);
+            handlePlain(String.valueOf(content), nameFromParent, mailInfo, "mail_content.html");
+        } else {
+            handleUnknownAsPlain(String.valueOf(content), mimeType, mailInfo);
+        }
+    }
+
+    private void handleMultipart(MimeMultipart mimeMultipart, MailInfo mailInfo) throws MessagingException {
+        int count = Utility.getCount(mimeMultipart);
+        for (int i = 0; i < count; i++) {
+            try {
+                BodyPart bodyPart = mimeMultipart.getBodyPart(i);
+                MimeType mimeType = Utility.getMimeType(bodyPart.getContentType()).orElse(null);
+                readPart(bodyPart, mimeType, mailInfo);
+            } catch (MessagingException exception) {
+                Utility.throwIfConnectionLost(exception);
+                LOGGER.error("Could not read multi part message: {}", exception.getMessage());
+            }
+        }
+    }
+
+    private boolean isSkipped(Part part, MimeType mimeType, MailInfo mailInfo) {
+        // Without a filter no part needs its size or disposition
+        if (!partFilter.isActive()) {
+            return false;
+        }
+        try {
+            Optional<String> rejection = partFilter.getRejection(part, mimeType);
+            if (rejection.isPresent()) {
+                String name = Optional.ofNullable(part.getFileName()).orElse(mimeType.getBaseType());
+                LOGGER.debug("Skipping part {} of mail {}: {}", name, mailInfo.getNumber(), rejection.get());
+                mailInfo.addSkippedPart(String.format("%s (%s)", name, rejection.get()));
+                metrics.partSkipped(part.getSize());
+                return true;
+            }
+        } catch (MessagingException exception) {
+            LOGGER.warn("Could not check part of mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+        }
+        return false;
+    }
+
+    private void handleBASE64DecoderStream(BASE64DecoderStream base64DecoderStream, MimeType mimeType, MailInfo mailInfo) {
+        Utility.getFileName(mimeType)
+            .filter(StringUtils::isNotBlank)
+            .ifPresentOrElse(fileName -> {
+                LOGGER.debug("Downloading attachment: {}", fileName);
+                String validFileName = addAttachment(mailInfo, fileName);
+                writer.writeToFile(base64DecoderStream, mailInfo, validFileName);
+            }, () -> {
+                MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
+                try {
+                    org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(mimeType.getBaseType());
+                    String fileName = UUID.randomUUID() + detectedMimeType.getExtension();
+                    LOGGER.debug("Downloading unnamed attachment: {}", fileName);
+                    String validFileName = addAttachment(mailInfo, fileName);
+                    writer.writeToFile(base64DecoderStream, mailInfo, validFileName);
+                } catch (MimeTypeException exception) {
+                    LOGGER.warn("Skipped unnamed attachment, type: {}, because: {}", mimeType, exception.getMessage());
+                }
+            });
+    }
+
+    // Not written with lambdas, a lost connection has to leave this method as a checked exception
+    private void handleNestedMessage(MimeMessage nestedMessage, MimeType mimeType, MailInfo mailInfo) throws MessagingException {
+        try {
+            MimeType nestedMimeType = Utility.getMimeType(nestedMessage.getContentType()).orElse(null);
+            Optional<String> fileName = Utility.getFileName(mimeType).filter(StringUtils::isNotBlank);
+            if (fileName.isPresent()) {
+                try {
+                    LOGGER.debug("Downloading nested E-Mail: {}", fileName.get());
+                    String validFileName = addAttachment(mailInfo, fileName.get());
+                    readContent(nestedMessage.getContent(), nestedMimeType, mailInfo, validFileName);
+                } catch (IOException | MessagingException exception) {
+                    Utility.throwIfConnectionLost(exception);
+                    LOGGER.error("Failed", exception);
+                }
+            } else {
+                MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
+                try {
+                    org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(nestedMimeType.getBaseType());
+                    String unnamedFileName = UUID.randomUUID() + detectedMimeType.getExtension();
+                    LOGGER.debug("Downloading unnamed nested E-Mail: {}", unnamedFileName);
+                    String validFileName = addAttachment(mailInfo, unnamedFileName);
+                    readContent(nestedMessage.getContent(), nestedMimeType, mailInfo, validFileName);
+                } catch (IOException | MessagingException | MimeTypeException exception) {
+                    Utility.throwIfConnectionLost(exception);
+                    LOGGER.warn("Skipped unnamed content, type: {}, because: {}", mimeType, exception.getMessage());
+                }
+            }
+        } catch (MessagingException exception) {
+            Utility.throwIfConnectionLost(exception);
+            LOGGER.error("Failed", exception);
+        }
+    }
+
+    private void handlePlain(String contentText, String contentName, MailInfo mailInfo, String fallbackName) {
+        String currentFileName = Optional.ofNullable(contentName).map(name -> String.format("%s.txt", name)).orElse(fallbackName);
+        writer.writeToFile(contentText, mailInfo, currentFileName);
+    }
+
+    private void handleUnknownAsPlain(String contentText, MimeType mimeType, MailInfo mailInfo) {
+        Utility.getFileName(mimeType)
+            .filter(StringUtils::isNotBlank)
+            .ifPresentOrElse(fileName -> {
+                LOGGER.debug("Downloading named content: {}, {}", fileName, mimeType);
+                String validFileName = addAttachment(mailInfo, fileName);
+                writer.writeToFile(contentText, mailInfo, validFileName);
+            }, () -> {
+                MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
+                try {
+                    org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(mimeType.getBaseType());
+                    String fileName = UUID.randomUUID() + detectedMimeType.getExtension();
+                    LOGGER.debug("Downloading unnamed content: {}", fileName);
+                    String validFileName = addAttachment(mailInfo, fileName);
+                    writer.writeToFile(contentText, mailInfo, validFileName);
+                } catch (MimeTypeException exception) {
+                    LOGGER.warn("Skipped unnamed content, type: {}, because: {}", mimeType, exception.getMessage());
+                }
+            });
+    }
+
+    private String addAttachment(MailInfo mailInfo, String fileName) {
+        String validFileName = getValidAttachmentName(mailInfo, fileName);
+        mailInfo.addAttachment(validFileName);
+        return validFileName;
+    }
+
+    private String getValidAttachmentName(MailInfo mailInfo, String fileName) {
+        if (mailInfo.getAttachments().contains(fileName)) {
+            return String.format("%s_%s", mailInfo.getAttachments().size(), fileName);
+        }
+        return fileName;
+    }
+
+}
@@ -0,0 +1,25 @@
+package net.skoczylas.imap.backup;
+
+import java.util.Locale;
+
+enum Durability {
+
+    // Leave flushing to the operating system
+    NONE,
+    // Sync the files of every mail before it counts as written
+    MESSAGE,
+    // Sync the written files in groups and before a folder checkpoint is stored
+    BATCH;
+
+    static Durability of(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException(String.format("Unknown durability %s, use none, message or batch", value), exception);
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+class FolderSync {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderSync.class);
+
+    // RFC 2177 allows servers to drop an IDLE after 30 minutes, so it is renewed before that
+    private static final long IDLE_RENEW_MINUTES = 25;
+    private static final long RETRY_SECONDS = 30;
+
+    private final StorePool storePool;
+    private final ScheduledExecutorService scheduler;
+    private final Stage fetchStage;
+    private final Consumer<String> readFolder;
+    private final Predicate<String> hasNewMessages;
+    private final long pollSeconds;
+    private final Map<String, AtomicInteger> readRequests = new ConcurrentHashMap<>();
+    private final Map<String, IMAPFolder> idlingFolders = new ConcurrentHashMap<>();
+    private final List<ScheduledFuture<?>> polls = new CopyOnWriteArrayList<>();
+    private final List<Thread> idleThreads = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    FolderSync(StorePool storePool, ScheduledExecutorService scheduler, Stage fetchStage, Consumer<String> readFolder, Predicate<String> hasNewMessages, long pollSeconds) {
+        this.storePool = storePool;
+        this.scheduler = scheduler;
+        this.fetchStage = fetchStage;
+        this.readFolder = readFolder;
+        this.hasNewMessages = hasNewMessages;
+        this.pollSeconds = Math.max(1, pollSeconds);
+    }
+
+    void start(List<String> idleFolders, List<String> pollFolders) {
+        for (String folderName : idleFolders) {
+            Thread thread = new Thread(() -> idle(folderName), String.format("idle-%s", folderName));
+            thread.setDaemon(true);
+            idleThreads.add(thread);
+            thread.start();
+        }
+        // Offsets spread the polls over the interval instead of checking every folder at once
+        for (int index = 0; index < pollFolders.size(); index++) {
+            String folderName = pollFolders.get(index);
+            long offset = pollSeconds * 1000 * index / pollFolders.size();
+            polls.add(scheduler.scheduleWithFixedDelay(() -> poll(folderName), offset, pollSeconds * 1000, TimeUnit.MILLISECONDS));
+        }
+        LOGGER.info("Watching {} folders with IDLE, polling {} folders every {} s", idleFolders.size(), pollFolders.size(), pollSeconds);
+    }
+
+    void stop() {
+        running = false;
+        polls.forEach(poll -> poll.cancel(false));
+        idlingFolders.values().forEach(FolderSync::interruptIdle);
+        for (Thread thread : idleThreads) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(RETRY_SECONDS));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // The shared scheduler only hands the check over, STATUS waits for a connection on the fetch stage like a read
+    private void poll(String folderName) {
+        if (running && getReadRequests(folderName).get() == 0) {
+            submit(folderName, true);
+        }
+    }
+
+    private void idle(String folderName) {
+        while (running) {
+            Store store = null;
+            IMAPFolder folder = null;
+            try {
+                // The IDLE keeps its connection, it only gets one if another is left for the reads it triggers
+                Optional<Store> reserved = storePool.tryReserve();
+                if (reserved.isEmpty()) {
+                    LOGGER.warn("No connection left to watch {} with IDLE besides the readers, polling it instead", folderName);
+                    pollInstead(folderName);
+                    return;
+                }
+                store = reserved.get();
+                if (!(store instanceof IMAPStore) || !((IMAPStore) store).hasCapability("IDLE")) {
+                    LOGGER.info("Server does not support IDLE, polling {} instead", folderName);
+                    pollInstead(folderName);
+                    return;
+                }
+                folder = (IMAPFolder) store.getFolder(folderName);
+                folder.open(Folder.READ_ONLY);
+                folder.addMessageCountListener(new MessageCountAdapter() {
+                    @Override
+                    public void messagesAdded(MessageCountEvent event) {
+                        read(folderName);
+                    }
+                });
+                idlingFolders.put(folderName, folder);
+                // Messages may have arrived while the folder was not watched
+                read(folderName);
+                LOGGER.info("Waiting for new messages in {}", folderName);
+                while (running && folder.isOpen()) {
+                    IMAPFolder idlingFolder = folder;
+                    ScheduledFuture<?> renew = scheduler.schedule(() -> interruptIdle(idlingFolder), IDLE_RENEW_MINUTES, TimeUnit.MINUTES);
+                    try {
+                        folder.idle(true);
+                    } finally {
+                        renew.cancel(false);
+                    }
+                }
+            } catch (MessagingException exception) {
+                if (running) {
+                    LOGGER.warn("Watching {} failed, retrying in {} s: {}", folderName, RETRY_SECONDS, exception.getMessage());
+                    sleep();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                idlingFolders.remove(folderName);
+                close(folder);
+                storePool.releaseReserved(store);
+            }
+        }
+    }
+
+    private void pollInstead(String folderName) {
+        if (running) {
+            polls.add(scheduler.scheduleWithFixedDelay(() -> poll(folderName), 0, pollSeconds, TimeUnit.SECONDS));
+        }
+    }
+
+    private void read(String folderName) {
+        submit(folderName, false);
+    }
+
+    // Only one task per folder is queued, so the fetch stage never blocks the caller. Changes during a running read
+    // make it read the folder once more, a poll only reads it if STATUS shows new messages
+    private void submit(String folderName, boolean poll) {
+        AtomicInteger requests = getReadRequests(folderName);
+        if (!running || requests.getAndIncrement() > 0) {
+            return;
+        }
+        fetchStage.submit(() -> {
+            boolean check = poll;
+            int handled;
+            do {
+                handled = requests.get();
+                try {
+                    if (running && (!check || hasNewMessages.test(folderName))) {
+                        readFolder.accept(folderName);
+                    }
+                } catch (RuntimeException exception) {
+                    LOGGER.error("Could not read folder {}: {}", folderName, exception.getMessage());
+                }
+                check = false;
+            } while (requests.addAndGet(-handled) > 0);
+        }).whenComplete((result, exception) -> {
+            // A task that was rejected or interrupted never ran, the folder has to accept new requests again
+            if (exception != null) {
+                requests.set(0);
+                if (running) {
+                    LOGGER.warn("Could not queue read of folder {}: {}", folderName, exception.getMessage());
+                }
+            }
+        });
+    }
+
+    private AtomicInteger getReadRequests(String folderName) {
+        return readRequests.computeIfAbsent(folderName, name -> new AtomicInteger());
+    }
+
+    // Any command on the folder ends a running IDLE, NOOP is the cheapest one
+    private static void interruptIdle(IMAPFolder folder) {
+        try {
+            folder.doCommand(protocol -> {
+                protocol.simpleCommand("NOOP", null);
+                return null;
+            });
+        } catch (MessagingException exception) {
+            LOGGER.debug("Could not interrupt IDLE of {}: {}", folder.getFullName(), exception.getMessage());
+        }
+    }
+
+    private void close(Folder folder) {
+        try {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
+        } catch (MessagingException exception) {
+            LOGGER.warn("Could not close folder {}: {}", folder.getFullName(), exception.getMessage());
+        }
+    }
+
+    private void sleep() {
+        try {
+            TimeUnit.SECONDS.sleep(RETRY_SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package net.skoczylas.imap.backup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+class Histogram {
+
+    // Bucket i holds values below 2^i, which is precise enough for latencies and sizes
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        long positive = Math.max(0, value);
+        buckets[Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(positive))].increment();
+        count.increment();
+        sum.add(positive);
+        max.accumulate(positive);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : sum.sum() / total;
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return Math.min(getMax(), i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    Map<String, Long> toMap() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("count", getCount());
+        values.put("mean", getMean());
+        values.put("p50", getPercentile(0.5));
+        values.put("p90", getPercentile(0.9));
+        values.put("p99", getPercentile(0.99));
+        values.put("max", getMax());
+        return values;
+    }
+
+}
@@ -1,251 +1,582 @@
 package net.skoczylas.imap.backup;
 
-import com.sun.mail.imap.IMAPNestedMessage;
-import com.sun.mail.util.BASE64DecoderStream;
+import com.sun.mail.imap.IMAPFolder;
 import jakarta.activation.MimeType;
 import jakarta.mail.*;
 import jakarta.mail.internet.MimeMessage;
-import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.search.SearchTerm;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.tika.mime.MimeTypeException;
-import org.apache.tika.mime.MimeTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class ImapBackup {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ImapBackup.class);
 
-    private final List<MailInfo> mailQueue;
+    // Attempts of a folder in a row without any progress before it is given up
+    private static final int MAX_ATTEMPTS = 5;
+
     private final Writer writer;
+    private final Metrics metrics = new Metrics();
+    private final ContentReader contentReader;
+    private final MessageFilter messageFilter;
+    private final Checkpoints checkpoints;
+    private final StorePool storePool;
+    private final WriterPool writerPool;
+    private final boolean ownsWriterPool;
+    private final boolean fullBackup;
+    private final boolean rawOnly;
+    private final boolean virtualThreads;
+    private final boolean daemon;
+    private final List<String> idleFolders;
+    private final int pollInterval;
+    private final int fetchThreads;
+    private final String host;
+    private final AdaptiveThrottle throttle;
+    private final AtomicInteger mailCount;
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
 
     private Store store;
-    private int mailCount = 0;
 
-    public ImapBackup(Session session, String output, String template, String username, String password) throws IOException {
-        this.mailQueue = new ArrayList<>();
-        this.writer = new Writer(mailQueue, output, "imapBackup", username, template);
+    public ImapBackup(Session session, BackupSettings settings, String username, String password) throws IOException {
+        this(session, settings, username, password, new WriterPool(settings), ConnectionLimiter.unlimited(), true);
+    }
+
+    ImapBackup(Session session, BackupSettings settings, String username, String password, WriterPool writerPool, ConnectionLimiter connectionLimiter) throws IOException {
+        this(session, settings, username, password, writerPool, connectionLimiter, false);
+    }
 
+    private ImapBackup(Session session, BackupSettings settings, String username, String password, WriterPool writerPool, ConnectionLimiter connectionLimiter, boolean ownsWriterPool) throws IOException {
+        this.writerPool = writerPool;
+        this.ownsWriterPool = ownsWriterPool;
+        this.writer = new Writer(settings, "imapBackup", username, metrics, writerPool);
+        this.mailCount = new AtomicInteger(writer.getIndexedCount());
+        this.contentReader = new ContentReader(writer, PartFilter.of(settings), metrics);
+        this.messageFilter = MessageFilter.of(settings);
+        // Mails outside the filter are skipped, a stored checkpoint would hide them from later runs without it.
+        // The checkpoints still advance in memory, so the daemon does not read all matching mails on every poll
+        this.checkpoints = new Checkpoints(writer.getAccountPath(), messageFilter.getSearchTerm().isEmpty());
+        this.daemon = settings.isDaemon();
+        this.idleFolders = daemon ? Arrays.asList(StringUtils.split(StringUtils.defaultString(settings.getIdleFolders()), ",")) : Collections.emptyList();
+        this.pollInterval = settings.getPollInterval();
+        this.host = session.getProperty("mail.imap.host");
+        this.fetchThreads = Math.max(1, settings.getConnections());
+        // Every folder watched with IDLE keeps its own connection open
+        this.storePool = new StorePool(session, username, password, fetchThreads + idleFolders.size(), connectionLimiter);
+        this.fullBackup = settings.isFullBackup();
+        this.rawOnly = settings.isRawOnly();
+        this.virtualThreads = settings.isVirtualThreads();
+        this.throttle = new AdaptiveThrottle(fetchThreads, settings.getFetchSize(), settings.isAdaptiveConcurrency());
+
+        long start = System.nanoTime();
         try {
-            this.store = session.getStore("imap");
-            LOGGER.info("Connecting as user {}", username);
-            this.store.connect(username, password);
+            this.store = storePool.acquire();
+            recordPhase("connect", start);
         } catch (MessagingException exception) {
             LOGGER.error("Connection failed: {}", exception.getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public void run() {
-        if (store.isConnected()) {
-            writer.run();
-            try {
-                Folder defaultFolder = store.getDefaultFolder();
-                List<Folder> folders = Arrays.asList(defaultFolder.list());
-
-                String folderNames = folders.stream().map(Folder::getName).collect(Collectors.joining(", "));
-                LOGGER.info("Found folders: {}", folderNames);
+    public boolean run() {
+        if (store == null || !store.isConnected()) {
+            storePool.close();
+            if (ownsWriterPool) {
+                writerPool.shutdown();
+            }
+            writer.stop();
+            finished.countDown();
+            return false;
+        }
+        boolean success = false;
+        writer.run();
+        metrics.start(writer.getAccountPath(), host, writer.getAccountPath().getFileName().toString(), writerPool.getScheduler());
+        Stage fetchStage = null;
+        try {
+            long start = System.nanoTime();
+            List<Folder> folders = getFolders(store.getDefaultFolder());
+            storePool.release(store);
+            recordPhase("list", start);
+
+            String folderNames = folders.stream().map(Folder::getFullName).collect(Collectors.joining(", "));
+            LOGGER.info("Found folders: {}", folderNames);
+
+            start = System.nanoTime();
+            fetchStage = new Stage("fetch", fetchThreads, folders.size(), virtualThreads);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Folder folder : folders) {
+                String folderName = folder.getFullName();
+                futures.add(fetchStage.submit(() -> readFolder(folderName)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .exceptionally(exception -> {
+                        LOGGER.error("Failed: {}", exception.getMessage());
+                        return null;
+                    })
+                    .join();
+            recordPhase("fetch", start);
+            LOGGER.info("{}", fetchStage);
+
+            if (daemon) {
+                start = System.nanoTime();
+                sync(folders, fetchStage);
+                recordPhase("sync", start);
+            }
 
-                folders.forEach(folder -> readFolder(folder, new ArrayDeque<>()));
+            start = System.nanoTime();
+            if (ownsWriterPool) {
+                writerPool.shutdown();
+            }
+            writer.stop();
+            recordPhase("write", start);
+            success = true;
+        } catch (MessagingException exception) {
+            LOGGER.error("Failed: {}", exception.getMessage());
+            metrics.error(exception);
+        } finally {
+            metrics.stop();
+            if (fetchStage != null) {
+                fetchStage.shutdownNow();
+            }
+            storePool.close();
+        }
+        LOGGER.info("Finished");
+        finished.countDown();
+        return success;
+    }
 
-                writer.stop();
-            } catch (MessagingException exception) {
-                LOGGER.error("Failed: {}", exception.getMessage());
+    // Ends the daemon mode and waits until all pending writes are done
+    public void stop() {
+        stopSignal.countDown();
+        try {
+            if (!finished.await(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("Backup did not finish in time");
             }
-            LOGGER.info("Finished");
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sync(List<Folder> folders, Stage fetchStage) {
+        List<String> watchedFolders = new ArrayList<>();
+        List<String> polledFolders = new ArrayList<>();
+        for (Folder folder : folders) {
+            String folderName = folder.getFullName();
+            boolean watched = idleFolders.stream().map(String::trim).anyMatch(folderName::equalsIgnoreCase);
+            (watched ? watchedFolders : polledFolders).add(folderName);
         }
+        FolderSync folderSync = new FolderSync(storePool, writerPool.getScheduler(), fetchStage, this::readFolder, this::hasNewMessages, pollInterval);
+        folderSync.start(watchedFolders, polledFolders);
+        try {
+            stopSignal.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("Stopping sync");
+        folderSync.stop();
+        fetchStage.shutdown();
     }
 
-    private void readFolder(Folder folder, Deque<String> folderNames) {
+    // STATUS works without selecting the folder, so unchanged folders cost a single round trip
+    private boolean hasNewMessages(String folderName) {
+        Store statusStore = null;
         try {
-            if (!folder.isOpen()) {
-                folder.open(Folder.READ_ONLY);
+            statusStore = storePool.acquire();
+            Folder folder = statusStore.getFolder(folderName);
+            if (!(folder instanceof IMAPFolder)) {
+                return true;
             }
-            folderNames.addLast(folder.getName());
+            IMAPFolder imapFolder = (IMAPFolder) folder;
+            long uidNext = imapFolder.getUIDNext();
+            long uidValidity = imapFolder.getUIDValidity();
+            return checkpoints.get(folderName)
+                    .map(checkpoint -> checkpoint.getUidValidity() != uidValidity || uidNext > checkpoint.getLastUid() + 1)
+                    .orElse(uidNext > 1);
+        } catch (MessagingException exception) {
+            LOGGER.warn("Could not check folder {}: {}", folderName, exception.getMessage());
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            storePool.release(statusStore);
+        }
+    }
 
-            LOGGER.info("Reading folder {}", folder.getName());
-            List<Message> messages = Arrays.asList(folder.getMessages());
+    Metrics getMetrics() {
+        return metrics;
+    }
 
-            messages.forEach(message -> readMessage(folderNames, (MimeMessage) message));
+    Map<String, Long> getPhaseTimes() {
+        synchronized (phaseTimes) {
+            return new LinkedHashMap<>(phaseTimes);
+        }
+    }
+
+    private void recordPhase(String phase, long start) {
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        synchronized (phaseTimes) {
+            phaseTimes.put(phase, millis);
+        }
+        LOGGER.info("Phase {} took {} ms", phase, millis);
+    }
 
-            List<Folder> subFolders = Arrays.asList(folder.list());
-            if (!subFolders.isEmpty()) {
-                String subFolderNames = subFolders.stream().map(Folder::getName).collect(Collectors.joining(", "));
-                LOGGER.info("{} has sub folders: {}", folder.getName(), subFolderNames);
-                subFolders.forEach(subFolder -> readFolder(subFolder, folderNames));
+    private List<Folder> getFolders(Folder defaultFolder) throws MessagingException {
+        List<Folder> folders = new ArrayList<>();
+        Map<Folder, Integer> messageCounts = new HashMap<>();
+        for (Folder folder : defaultFolder.list("*")) {
+            if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0 && messageFilter.includes(folder.getFullName())) {
+                folders.add(folder);
+                messageCounts.put(folder, folder.getMessageCount());
             }
+        }
+        // Largest folders first, so they do not end up as the last long running task
+        folders.sort(Comparator.comparing(messageCounts::get, Comparator.reverseOrder()));
+        return folders;
+    }
 
-            folderNames.removeLast();
+    // Disconnects and throttling resume after the last message read, so a long folder is not read again from its start
+    private void readFolder(String folderName) {
+        long startNanos = System.nanoTime();
+        FolderProgress progress = new FolderProgress();
+        int attempts = 0;
+        try {
+            while (true) {
+                throttle.acquire();
+                boolean holdsSlot = true;
+                long resumeUid = progress.getResumeUid();
+                try {
+                    if (readFolder(folderName, progress)) {
+                        return;
+                    }
+                    // The connection was given back because the throttle lowered the limit
+                    holdsSlot = false;
+                } catch (MessagingException exception) {
+                    metrics.error(exception);
+                    attempts = progress.getResumeUid() > resumeUid ? 1 : attempts + 1;
+                    if (!AdaptiveThrottle.isRetryable(exception) || attempts > MAX_ATTEMPTS) {
+                        LOGGER.error("Could not read folder {}: {}", folderName, exception.getMessage());
+                        return;
+                    }
+                    long backoffMillis = throttle.throttled(exception);
+                    storePool.closeIdle();
+                    LOGGER.warn("Reading {} was interrupted ({}), resuming after UID {} in {} ms", folderName, exception.getMessage(), progress.getResumeUid(), backoffMillis);
+                } finally {
+                    if (holdsSlot) {
+                        throttle.release();
+                    }
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.folderRead(folderName, startNanos);
+        }
+    }
+
+    // Returns false if the folder was left early to give the connection back
+    private boolean readFolder(String folderName, FolderProgress progress) throws MessagingException, InterruptedException {
+        Store folderStore = null;
+        Folder folder = null;
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        try {
+            folderStore = storePool.acquire();
+            folder = folderStore.getFolder(folderName);
+            folder.open(Folder.READ_ONLY);
+            Deque<String> folderNames = getFolderNames(folder);
+
+            LOGGER.info("Reading folder {}", folderName);
+            List<Message> messages = getMessages(folder, progress);
+            progress.listed(getUid(folder, messages.isEmpty() ? null : messages.get(messages.size() - 1)));
+
+            for (int start = 0; start < messages.size(); ) {
+                // Everything from here on is read again if the connection is lost
+                progress.reading(getUid(folder, messages.get(start)));
+                if (start > 0 && throttle.tryYield()) {
+                    LOGGER.info("Pausing {} to lower the number of connections", folderName);
+                    return false;
+                }
+                List<Message> chunk = messages.subList(start, Math.min(start + throttle.getFetchSize(), messages.size()));
+                prefetch(folder, chunk);
+                for (Message message : chunk) {
+                    long uid = getUid(folder, message);
+                    progress.reading(uid);
+                    readMessage(folderNames, (MimeMessage) message)
+                            .map(write -> write.whenComplete((result, exception) -> {
+                                if (exception != null) {
+                                    progress.failed(uid);
+                                }
+                            }))
+                            .ifPresent(writes::add);
+                }
+                writes.removeIf(CompletableFuture::isDone);
+                start += chunk.size();
+            }
+            progress.reading(Long.MAX_VALUE);
+            // Attachments are streamed from the open folder, so it has to stay open until they are written
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).handle((result, exception) -> result).join();
+            // The checkpoint must not get ahead of files that are not synced yet
+            writer.sync();
+            if (progress.hasFailedWrites()) {
+                LOGGER.warn("Not all messages of {} were read or written, they will be read again in the next run", folderName);
+            }
+            updateCheckpoint(folder, progress);
+            return true;
+        } finally {
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).handle((result, exception) -> result).join();
+            close(folder);
+            storePool.release(folderStore);
+        }
+    }
+
+    static Deque<String> getFolderNames(Folder folder) throws MessagingException {
+        String separator = String.valueOf(folder.getSeparator());
+        return Arrays.stream(StringUtils.split(folder.getFullName(), separator))
+                .collect(Collectors.toCollection(ArrayDeque::new));
+    }
+
+    private void close(Folder folder) {
+        try {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
         } catch (MessagingException exception) {
-            LOGGER.error("Could not read folder {}: {}", folder.getName(), exception.getMessage());
+            LOGGER.warn("Could not close folder {}: {}", folder.getFullName(), exception.getMessage());
+        }
+    }
+
+    private List<Message> getMessages(Folder folder, FolderProgress progress) throws MessagingException {
+        if (!(folder instanceof UIDFolder)) {
+            return Arrays.asList(getMatchingMessages(folder));
+        }
+        UIDFolder uidFolder = (UIDFolder) folder;
+        long uidValidity = uidFolder.getUIDValidity();
+        if (progress.getResumeUid() > 0) {
+            if (progress.getUidValidity() == uidValidity) {
+                progress.resume();
+                return getMessagesAfter(folder, progress.getResumeUid());
+            }
+            LOGGER.info("UIDVALIDITY of {} changed while reading, reading all messages", folder.getName());
         }
+        progress.start(uidValidity);
+        Optional<Checkpoints.Checkpoint> checkpoint = checkpoints.get(folder.getFullName());
+        if (fullBackup || checkpoint.isEmpty()) {
+            return getAllMessages(folder);
+        }
+        if (checkpoint.get().getUidValidity() != uidValidity) {
+            LOGGER.info("UIDVALIDITY of {} changed, reading all messages", folder.getName());
+            return getAllMessages(folder);
+        }
+        return getMessagesAfter(folder, checkpoint.get().getLastUid());
+    }
+
+    private List<Message> getMessagesAfter(Folder folder, long lastUid) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+        // A range ending with * always contains the last message, even if its UID is below the start
+        List<Message> messages = new ArrayList<>();
+        for (Message message : uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)) {
+            if (message != null && uidFolder.getUID(message) > lastUid) {
+                messages.add(message);
+            }
+        }
+        Optional<SearchTerm> searchTerm = messageFilter.getSearchTerm();
+        if (searchTerm.isPresent() && !messages.isEmpty()) {
+            messages = Arrays.asList(folder.search(searchTerm.get(), messages.toArray(new Message[0])));
+        }
+        LOGGER.info("Found {} new messages in {} since UID {}", messages.size(), folder.getName(), lastUid);
+        return messages;
+    }
+
+    // With a filter the server returns only the matching messages, the others are never fetched
+    private Message[] getMatchingMessages(Folder folder) throws MessagingException {
+        Optional<SearchTerm> searchTerm = messageFilter.getSearchTerm();
+        if (searchTerm.isEmpty()) {
+            return folder.getMessages();
+        }
+        Message[] messages = folder.search(searchTerm.get());
+        LOGGER.info("{} messages in {} match the filter", messages.length, folder.getName());
+        return messages;
+    }
+
+    private List<Message> getAllMessages(Folder folder) throws MessagingException {
+        Message[] messages = getMatchingMessages(folder);
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, fetchProfile);
+        return Arrays.asList(messages);
+    }
+
+    private void prefetch(Folder folder, List<Message> messages) throws MessagingException {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.SIZE);
+        fetchProfile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        if (writer.isRawExport()) {
+            fetchProfile.add(FetchProfile.Item.FLAGS);
+        }
+        LOGGER.debug("Prefetching {} messages of {}", messages.size(), folder.getFullName());
+        long start = System.nanoTime();
+        folder.fetch(messages.toArray(new Message[0]), fetchProfile);
+        metrics.fetched(start);
+        throttle.fetched(messages.size(), start);
+    }
+
+    private static long getUid(Folder folder, Message message) throws MessagingException {
+        return folder instanceof UIDFolder && message != null ? ((UIDFolder) folder).getUID(message) : 0;
+    }
 
+    private void updateCheckpoint(Folder folder, FolderProgress progress) throws MessagingException {
+        long completedUid = Math.max(0, progress.getCompletedUid());
+        if (!(folder instanceof UIDFolder) || (completedUid == 0 && !progress.hasFailedWrites())) {
+            return;
+        }
+        UIDFolder uidFolder = (UIDFolder) folder;
+        long uidValidity = uidFolder.getUIDValidity();
+        long previousUid = checkpoints.getLastUid(folder.getFullName(), uidValidity).orElse(0L);
+        // A full backup can fail on a message below the previous checkpoint, then the checkpoint moves back to it
+        checkpoints.update(folder.getFullName(), uidValidity, progress.hasFailedWrites() ? completedUid : Math.max(completedUid, previousUid));
     }
 
-    private void readMessage(Deque<String> parents, MimeMessage message) {
+    private Optional<CompletableFuture<Void>> readMessage(Deque<String> parents, MimeMessage message) throws MessagingException {
+        long start = System.nanoTime();
         try {
             String subject = Utility.getSubject(message).orElse("No subject");
             MimeType mimeType = Utility.getMimeType(message.getContentType()).orElse(null);
 
             if (mimeType != null) {
 
-                mailCount++;
-
                 List<MailAddress> from = Utility.getAddresses(message.getFrom());
                 List<MailAddress> to = Utility.getAddresses(message.getAllRecipients());
                 LocalDateTime receivedDate = Utility.convertToLocalDateTimeViaInstant(message.getReceivedDate());
-                MailInfo mailInfo = new MailInfo(mailCount, parents, from, to, subject, receivedDate, mimeType);
-                mailQueue.add(mailInfo);
+                String hash = MailInfo.getHash(parents, from, to, subject, receivedDate);
+                if (writer.isCompleted(hash)) {
+                    if (writer.isRawExport() && !writer.isExported(hash)) {
+                        // Backed up by a run without the raw export, only the export is written
+                        MailInfo mailInfo = new MailInfo(mailCount.get(), parents, from, to, subject, receivedDate, mimeType);
+                        writer.writeRaw(message, mailInfo);
+                        return Optional.of(mailInfo.getWrites());
+                    }
+                    LOGGER.debug("Skipping message from {}, subject={}, already written", Utility.getDate(receivedDate), subject);
+                    return Optional.empty();
+                }
+
+                int number = mailCount.incrementAndGet();
+                MailInfo mailInfo = new MailInfo(number, parents, from, to, subject, receivedDate, mimeType);
+                writer.startMessage(mailInfo);
 
                 String fromAddress = mailInfo.getFrom().stream().findFirst().map(MailAddress::getValidAddress).orElse("Unknown");
                 String folder = String.join("/", parents);
-                Utility.getContent(message)
-                        .ifPresent(content -> {
-                            readContent(content, mimeType, mailInfo);
-                            writer.writeInfoFile(mailInfo);
-                        });
+                try {
+                    if (writer.isRawExport()) {
+                        writer.writeRaw(message, mailInfo);
+                    }
+                    if (!rawOnly && !contentReader.readPart(message, mimeType, mailInfo)) {
+                        throw new MessagingException("Could not read content of message " + number);
+                    }
+                    writer.writeInfoFile(mailInfo);
+                    writer.commitMessage(mailInfo);
+                } catch (MessagingException | RuntimeException exception) {
+                    // The body text collected so far would stay in memory until the end of the run
+                    writer.discardText(mailInfo);
+                    throw exception;
+                }
+                writer.addToIndex(mailInfo);
+                metrics.messageRead(message.getSize(), start);
+                // Progress is summarized by the metrics, logging every message costs too much on large mailboxes
                 if (mailInfo.getAttachments().isEmpty()) {
-                    LOGGER.info("Message {}, {}, {}, subject={}, from={}", mailCount, Utility.getDate(mailInfo.getReceivedAt()), folder, mailInfo.getSubject(), fromAddress);
+                    LOGGER.debug("Message {}, {}, {}, subject={}, from={}", number, Utility.getDate(mailInfo.getReceivedAt()), folder, mailInfo.getSubject(), fromAddress);
                 } else {
-                    LOGGER.info("Message {}, {}, {}, subject={}, from={}, attachments={}", mailCount, Utility.getDate(mailInfo.getReceivedAt()), folder, mailInfo.getSubject(), fromAddress, mailInfo.getAttachments());
+                    LOGGER.debug("Message {}, {}, {}, subject={}, from={}, attachments={}", number, Utility.getDate(mailInfo.getReceivedAt()), folder, mailInfo.getSubject(), fromAddress, mailInfo.getAttachments());
                 }
-
+                return Optional.of(mailInfo.getWrites().thenRun(() -> writer.completeMessage(mailInfo)));
             }
         } catch (MessagingException exception) {
+            // A lost connection fails every following message as well, the folder is resumed instead
+            if (AdaptiveThrottle.isRetryable(exception)) {
+                throw exception;
+            }
             LOGGER.error("Could not read message: {}", exception.getMessage());
+            metrics.error(exception);
+            // Reported like a failed write, so the checkpoint stays before the message
+            return Optional.of(CompletableFuture.failedFuture(exception));
         }
+        return Optional.empty();
     }
 
-    private void readContent(Object content, MimeType mimeType, MailInfo mailInfo) {
-        readContent(content, mimeType, mailInfo, null);
-    }
+    // Resume point of a folder across reconnects, the lowest UID that was not read or whose write failed
+    private static class FolderProgress {
 
-    private void readContent(Object content, MimeType mimeType, MailInfo mailInfo, String nameFromParent) {
-        if (mimeType == null) {
-            LOGGER.warn("Skipping content, no mime type found");
-            return;
+        private long uidValidity = -1;
+        private long lastUid = 0;
+        private long readingUid = Long.MAX_VALUE;
+        private long failedUid = Long.MAX_VALUE;
+        private long resumeUid = 0;
+
+        synchronized void start(long uidValidity) {
+            this.uidValidity = uidValidity;
+            this.lastUid = 0;
+            this.resumeUid = 0;
+            this.failedUid = Long.MAX_VALUE;
         }
-        LOGGER.debug("Reading content with type={}", mimeType);
-        if (content instanceof MimeMultipart) {
-            handleMultipart((MimeMultipart) content, mailInfo);
-        } else if (content instanceof BASE64DecoderStream) {
-            handleBASE64DecoderStream((BASE64DecoderStream) content, mimeType, mailInfo);
-        } else if (content instanceof IMAPNestedMessage) {
-            handleIMAPNestedMessage((IMAPNestedMessage) content, mimeType, mailInfo);
-        } else if ("text".equals(mimeType.getPrimaryType()) && "plain".equals(mimeType.getSubType())) {
-            handlePlain(String.valueOf(content), nameFromParent, mailInfo, "mail_content.txt");
-        } else if ("text".equals(mimeType.getPrimaryType()) && "html".equals(mimeType.getSubType())) {
-            handlePlain(String.valueOf(content), nameFromParent, mailInfo, "mail_content.html");
-        } else {
-            handleUnknownAsPlain(String.valueOf(content), mimeType, mailInfo);
-        }
-    }
-
-    private void handleMultipart(MimeMultipart mimeMultipart, MailInfo mailInfo) {
-        int count = Utility.getCount(mimeMultipart);
-        for (int i = 0; i < count; i++) {
-            try {
-                BodyPart bodyPart = mimeMultipart.getBodyPart(i);
-                MimeType mimeType = Utility.getMimeType(bodyPart.getContentType()).orElse(null);
-                Utility.getContent(bodyPart).ifPresent(content -> readContent(content, mimeType, mailInfo));
-            } catch (MessagingException exception) {
-                LOGGER.error("Could not read multi part message: {}", exception.getMessage());
-            }
-        }
-    }
-
-    private void handleBASE64DecoderStream(BASE64DecoderStream base64DecoderStream, MimeType mimeType, MailInfo mailInfo) {
-        Utility.getFileName(mimeType)
-            .filter(StringUtils::isNotBlank)
-            .ifPresentOrElse(fileName -> {
-                LOGGER.debug("Downloading attachment: {}", fileName);
-                String validFileName = addAttachment(mailInfo, fileName);
-                writer.writeToFile(base64DecoderStream, mailInfo, validFileName);
-            }, () -> {
-                MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
-                try {
-                    org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(mimeType.getBaseType());
-                    String fileName = UUID.randomUUID() + detectedMimeType.getExtension();
-                    LOGGER.debug("Downloading unnamed attachment: {}", fileName);
-                    String validFileName = addAttachment(mailInfo, fileName);
-                    writer.writeToFile(base64DecoderStream, mailInfo, validFileName);
-                } catch (MimeTypeException exception) {
-                    LOGGER.warn("Skipped unnamed attachment, type: {}, because: {}", mimeType, exception.getMessage());
-                }
-            });
-    }
 
-    private void handleIMAPNestedMessage(IMAPNestedMessage imapNestedMessage, MimeType mimeType, MailInfo mailInfo) {
-        try {
-            MimeType nestedMimeType = Utility.getMimeType(imapNestedMessage.getContentType()).orElse(null);
-            Utility.getFileName(mimeType)
-                .filter(StringUtils::isNotBlank)
-                .ifPresentOrElse(fileName -> {
-                    try {
-                        LOGGER.debug("Downloading nested E-Mail: {}", fileName);
-                        String validFileName = addAttachment(mailInfo, fileName);
-                        readContent(imapNestedMessage.getContent(), nestedMimeType, mailInfo, validFileName);
-                    } catch (IOException | MessagingException exception) {
-                        LOGGER.error("Failed", exception);
-                    }
-                }, () -> {
-                    MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
-                    try {
-                        org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(nestedMimeType.getBaseType());
-                        String fileName = UUID.randomUUID() + detectedMimeType.getExtension();
-                        LOGGER.debug("Downloading unnamed nested E-Mail: {}", fileName);
-                        String validFileName = addAttachment(mailInfo, fileName);
-                        readContent(imapNestedMessage.getContent(), nestedMimeType, mailInfo, validFileName);
-                    } catch (IOException | MessagingException | MimeTypeException exception) {
-                        LOGGER.warn("Skipped unnamed content, type: {}, because: {}", mimeType, exception.getMessage());
-                    }
-                });
-        } catch (MessagingException exception) {
-            LOGGER.error("Failed", exception);
+        // The messages after the resume point are read again, failed writes among them get a new chance
+        synchronized void resume() {
+            readingUid = Long.MAX_VALUE;
+            failedUid = Long.MAX_VALUE;
         }
-    }
 
-    private void handlePlain(String contentText, String contentName, MailInfo mailInfo, String fallbackName) {
-        String currentFileName = Optional.ofNullable(contentName).map(name -> String.format("%s.txt", name)).orElse(fallbackName);
-        writer.writeToFile(contentText, mailInfo, currentFileName);
-    }
+        synchronized void listed(long uid) {
+            lastUid = Math.max(lastUid, uid);
+        }
 
-    private void handleUnknownAsPlain(String contentText, MimeType mimeType, MailInfo mailInfo) {
-        Utility.getFileName(mimeType)
-            .filter(StringUtils::isNotBlank)
-            .ifPresentOrElse(fileName -> {
-                LOGGER.debug("Downloading named content: {}, {}", fileName, mimeType);
-                String validFileName = addAttachment(mailInfo, fileName);
-                writer.writeToFile(contentText, mailInfo, validFileName);
-            }, () -> {
-                MimeTypes allTypes = MimeTypes.getDefaultMimeTypes();
-                try {
-                    org.apache.tika.mime.MimeType detectedMimeType = allTypes.forName(mimeType.getBaseType());
-                    String fileName = UUID.randomUUID() + detectedMimeType.getExtension();
-                    LOGGER.debug("Downloading unnamed content: {}", fileName);
-                    String validFileName = addAttachment(mailInfo, fileName);
-                    writer.writeToFile(contentText, mailInfo, validFileName);
-                } catch (MimeTypeException exception) {
-                    LOGGER.warn("Skipped unnamed content, type: {}, because: {}", mimeType, exception.getMessage());
-                }
-            });
-    }
+        synchronized void reading(long uid) {
+            readingUid = uid;
+            updateResumeUid();
+        }
 
-    private String addAttachment(MailInfo mailInfo, String fileName) {
-        String validFileName = getValidAttachmentName(mailInfo, fileName);
-        mailInfo.addAttachment(validFileName);
-        return validFileName;
-    }
+        synchronized void failed(long uid) {
+            failedUid = Math.min(failedUid, uid);
+            updateResumeUid();
+        }
+
+        private void updateResumeUid() {
+            long firstOpenUid = Math.min(readingUid, failedUid);
+            if (firstOpenUid != Long.MAX_VALUE && firstOpenUid > 0) {
+                resumeUid = firstOpenUid - 1;
+            }
+        }
 
-    private String getValidAttachmentName(MailInfo mailInfo, String fileName) {
-        if (mailInfo.getAttachments().contains(fileName)) {
-            return String.format("%s_%s", mailInfo.getAttachments().size(), fileName);
+        synchronized boolean hasFailedWrites() {
+            return failedUid != Long.MAX_VALUE;
         }
-        return fileName;
+
+        synchronized long getUidValidity() {
+            return uidValidity;
+        }
+
+        // Everything up to this UID was written, the checkpoint stops before the first failed message
+        synchronized long getCompletedUid() {
+            return failedUid == Long.MAX_VALUE ? lastUid : Math.min(lastUid, failedUid - 1);
+        }
+
+        synchronized long getResumeUid() {
+            return resumeUid;
+        }
+
     }
 
 }
@@ -0,0 +1,69 @@
+package net.skoczylas.imap.backup;
+
+class LongSet {
+
+    private long[] values = new long[1024];
+    private boolean containsZero = false;
+    private int size = 0;
+
+    synchronized boolean add(long value) {
+        if (value == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+        if (size * 2 >= values.length) {
+            resize();
+        }
+        return insert(values, value);
+    }
+
+    synchronized boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int mask = values.length - 1;
+        int index = indexOf(value, mask);
+        while (values[index] != 0) {
+            if (values[index] == value) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    synchronized int size() {
+        return containsZero ? size + 1 : size;
+    }
+
+    private boolean insert(long[] table, long value) {
+        int mask = table.length - 1;
+        int index = indexOf(value, mask);
+        while (table[index] != 0) {
+            if (table[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = value;
+        size++;
+        return true;
+    }
+
+    private void resize() {
+        long[] oldValues = values;
+        values = new long[oldValues.length * 2];
+        size = 0;
+        for (long value : oldValues) {
+            if (value != 0) {
+                insert(values, value);
+            }
+        }
+    }
+
+    private static int indexOf(long value, int mask) {
+        return Long.hashCode(value * 0x9E3779B97F4A7C15L) & mask;
+    }
+
+}
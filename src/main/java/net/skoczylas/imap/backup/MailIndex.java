@@ -0,0 +1,292 @@
+package net.skoczylas.imap.backup;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+class MailIndex implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailIndex.class);
+
+    static final String FILE_NAME = "mail_index.dat";
+
+    private static final int MAGIC = 0x494D4249;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // Length and checksum of the record
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int HASH_SIZE = 32;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final AtomicLong position;
+    private final LongSet hashes = new LongSet();
+    private final boolean readOnly;
+
+    private int count = 0;
+
+    MailIndex(Path accountPath, LongConsumer existingRecords) throws IOException {
+        this(accountPath, existingRecords, false);
+    }
+
+    private MailIndex(Path accountPath, LongConsumer existingRecords, boolean readOnly) throws IOException {
+        this.file = accountPath.resolve(FILE_NAME);
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            if (channel.size() >= HEADER_SIZE) {
+                readVersion();
+            }
+        } else {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                writeFully(header, 0);
+                channel.truncate(HEADER_SIZE);
+            } else {
+                readVersion();
+            }
+        }
+        // Readers only look up the offsets they were given, so the records are not scanned
+        this.position = new AtomicLong(readOnly ? channel.size() : load(existingRecords));
+    }
+
+    // For readers next to a running backup, the file is never changed or truncated
+    static MailIndex openReadOnly(Path accountPath) throws IOException {
+        return new MailIndex(accountPath, offset -> { }, true);
+    }
+
+    private void readVersion() throws IOException {
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(String.format("Unknown mail index format: %s", file));
+        }
+    }
+
+    long append(MailInfo mailInfo) throws IOException {
+        if (readOnly) {
+            throw new IOException(String.format("Mail index opened read only: %s", file));
+        }
+        byte[] hash = decodeHash(mailInfo.getHash());
+        if (!hashes.add(ByteBuffer.wrap(hash).getLong())) {
+            return -1;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            // Space for the record header, filled in below
+            output.write(new byte[RECORD_HEADER_SIZE]);
+            output.write(hash);
+            output.writeInt(mailInfo.getNumber());
+            output.writeLong(mailInfo.getReceivedAt().toEpochSecond(ZoneOffset.UTC));
+            writeString(output, mailInfo.getMimeType() != null ? mailInfo.getMimeType().toString() : null);
+            writeStrings(output, mailInfo.getFolder());
+            writeString(output, mailInfo.getSubject());
+            writeAddresses(output, mailInfo.getFrom());
+            writeAddresses(output, mailInfo.getTo());
+            writeStrings(output, mailInfo.getAttachments());
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.capacity() - RECORD_HEADER_SIZE;
+        record.putInt(0, length);
+        record.putInt(Integer.BYTES, checksum(record.array(), RECORD_HEADER_SIZE, length));
+
+        // Writers reserve their range up front and write without holding a lock
+        long offset = position.getAndAdd(record.capacity());
+        writeFully(record, offset);
+        synchronized (this) {
+            count++;
+        }
+        return offset;
+    }
+
+    MailInfo read(long offset) throws IOException {
+        // Offsets kept elsewhere, like in the search index, may point to a record lost by a crash
+        ByteBuffer record = readRecord(offset, channel.size())
+                .orElseThrow(() -> new IOException(String.format("No valid record at %d in %s", offset, file)));
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(record.array()))) {
+            byte[] hash = new byte[HASH_SIZE];
+            input.readFully(hash);
+            int number = input.readInt();
+            LocalDateTime receivedAt = LocalDateTime.ofEpochSecond(input.readLong(), 0, ZoneOffset.UTC);
+            String mimeType = readString(input);
+            Deque<String> folder = new ArrayDeque<>(readStrings(input));
+            String subject = readString(input);
+            List<MailAddress> from = readAddresses(input);
+            List<MailAddress> to = readAddresses(input);
+            List<String> attachments = readStrings(input);
+            return new MailInfo(number, folder, from, to, subject, receivedAt,
+                    Optional.ofNullable(mimeType).flatMap(Utility::getMimeType).orElse(null),
+                    Hex.encodeHexString(hash), attachments);
+        }
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    // Called before mails are journaled as complete, a mail must not count as written while its record can still be lost
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!readOnly) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+
+    // Writers reserve their ranges up front, after a crash an unfinished record can sit before complete ones.
+    // Such holes are skipped by searching the next record with a valid checksum, only the end of the file is truncated
+    private long load(LongConsumer existingRecords) throws IOException {
+        long offset = HEADER_SIZE;
+        long end = HEADER_SIZE;
+        long size = channel.size();
+        while (offset < size) {
+            Optional<ByteBuffer> record = readRecord(offset, size);
+            if (record.isEmpty()) {
+                offset++;
+                continue;
+            }
+            if (offset > end) {
+                LOGGER.warn("Skipping {} bytes of an unfinished record at {} in {}", offset - end, end, file);
+            }
+            hashes.add(record.get().getLong(0));
+            existingRecords.accept(offset);
+            count++;
+            offset += RECORD_HEADER_SIZE + record.get().capacity();
+            end = offset;
+        }
+        if (end < size) {
+            LOGGER.warn("Dropping incomplete record at the end of {}", file);
+            channel.truncate(end);
+        }
+        if (count > 0) {
+            LOGGER.info("Loaded {} mails from {}", count, file);
+        }
+        return end;
+    }
+
+    // Empty if there is no record at the offset or it was not written completely
+    private Optional<ByteBuffer> readRecord(long offset, long size) throws IOException {
+        if (offset + RECORD_HEADER_SIZE + HASH_SIZE > size) {
+            return Optional.empty();
+        }
+        ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+        int length = header.getInt();
+        if (length <= HASH_SIZE || offset + RECORD_HEADER_SIZE + length > size) {
+            return Optional.empty();
+        }
+        ByteBuffer record = readFully(offset + RECORD_HEADER_SIZE, length);
+        if (header.getInt() != checksum(record.array(), 0, length)) {
+            return Optional.empty();
+        }
+        return Optional.of(record);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(bytes, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        long current = offset;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    private ByteBuffer readFully(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long current = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException(String.format("Unexpected end of %s", file));
+            }
+            current += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] decodeHash(String hash) {
+        try {
+            return Hex.decodeHex(hash);
+        } catch (DecoderException exception) {
+            throw new IllegalArgumentException(String.format("Invalid mail hash: %s", hash), exception);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream output, Collection<String> values) throws IOException {
+        output.writeInt(values.size());
+        for (String value : values) {
+            writeString(output, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream input) throws IOException {
+        int size = input.readInt();
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(input));
+        }
+        return values;
+    }
+
+    private static void writeAddresses(DataOutputStream output, List<MailAddress> addresses) throws IOException {
+        output.writeInt(addresses.size());
+        for (MailAddress address : addresses) {
+            writeString(output, address.getAddress());
+            writeString(output, address.getEncodedAddress());
+        }
+    }
+
+    private static List<MailAddress> readAddresses(DataInputStream input) throws IOException {
+        int size = input.readInt();
+        List<MailAddress> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            addresses.add(new MailAddress(readString(input), readString(input)));
+        }
+        return addresses;
+    }
+
+}
@@ -3,8 +3,12 @@ package net.skoczylas.imap.backup;
 import jakarta.activation.MimeType;
 import org.apache.commons.codec.digest.DigestUtils;
 
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
 
 public class MailInfo {
 
@@ -17,7 +21,17 @@ public class MailInfo {
     private final String hash;
     private final MimeType mimeType;
 
-    private final List<String> attachments = new ArrayList<>();
+    private final List<String> attachments = new CopyOnWriteArrayList<>();
+    private final List<String> skippedParts = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+    // Derived values are needed for every file of a mail, so they are only built once
+    private volatile String fromList;
+    private volatile String toList;
+    private volatile String folderPath;
+    private volatile Path relativePath;
+    private MessageWrite messageWrite;
+    private volatile List<MailManifest.Entry> writtenFiles = Collections.emptyList();
 
     public MailInfo(int number, Deque<String> folder, List<MailAddress> from, List<MailAddress> to, String subject, LocalDateTime receivedAt, MimeType mimeType) {
         this.number = number;
@@ -28,8 +42,24 @@ public class MailInfo {
         this.receivedAt = receivedAt;
         this.mimeType = mimeType;
 
-        String folderList = String.join("/", this.folder);
-        this.hash = DigestUtils.sha256Hex(folderList + receivedAt + subject + from + to);
+        this.hash = getHash(folder, from, to, subject, receivedAt);
+    }
+
+    MailInfo(int number, Deque<String> folder, List<MailAddress> from, List<MailAddress> to, String subject, LocalDateTime receivedAt, MimeType mimeType, String hash, List<String> attachments) {
+        this.number = number;
+        this.folder.addAll(folder);
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.receivedAt = receivedAt;
+        this.mimeType = mimeType;
+        this.hash = hash;
+        this.attachments.addAll(attachments);
+    }
+
+    static String getHash(Deque<String> folder, List<MailAddress> from, List<MailAddress> to, String subject, LocalDateTime receivedAt) {
+        String folderList = String.join("/", folder);
+        return DigestUtils.sha256Hex(folderList + receivedAt + subject + from + to);
     }
 
     public int getNumber() {
@@ -64,6 +94,35 @@ public class MailInfo {
         return mimeType;
     }
 
+    public String getFromList() {
+        if (fromList == null) {
+            fromList = from.stream().map(MailAddress::toString).collect(Collectors.joining(", "));
+        }
+        return fromList;
+    }
+
+    public String getToList() {
+        if (toList == null) {
+            toList = to.stream().map(MailAddress::toString).collect(Collectors.joining(", "));
+        }
+        return toList;
+    }
+
+    public String getFolderPath() {
+        if (folderPath == null) {
+            folderPath = String.join("/", folder);
+        }
+        return folderPath;
+    }
+
+    Path getRelativePath() {
+        return relativePath;
+    }
+
+    void setRelativePath(Path relativePath) {
+        this.relativePath = relativePath;
+    }
+
     public List<String> getAttachments() {
         return attachments;
     }
@@ -71,6 +130,45 @@ public class MailInfo {
     public void addAttachment(String fileName) {
         attachments.add(fileName);
     }
+
+    public List<String> getSkippedParts() {
+        return skippedParts;
+    }
+
+    public void addSkippedPart(String description) {
+        skippedParts.add(description);
+    }
+
+    List<MailManifest.Entry> getWrittenFiles() {
+        return writtenFiles;
+    }
+
+    void setWrittenFiles(List<MailManifest.Entry> writtenFiles) {
+        this.writtenFiles = writtenFiles;
+    }
+
+    synchronized MessageWrite getMessageWrite() {
+        if (messageWrite == null) {
+            messageWrite = new MessageWrite();
+        }
+        return messageWrite;
+    }
+
+    synchronized MessageWrite takeMessageWrite() {
+        MessageWrite current = messageWrite;
+        messageWrite = null;
+        return current;
+    }
+
+    public synchronized void addWrite(CompletableFuture<Void> write) {
+        writes.add(write);
+    }
+
+    public synchronized CompletableFuture<Void> getWrites() {
+        CompletableFuture<Void> allWrites = CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+        writes.clear();
+        return allWrites;
+    }
     
     @Override
     public boolean equals(Object o) {
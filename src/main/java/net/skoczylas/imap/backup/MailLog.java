@@ -0,0 +1,71 @@
+package net.skoczylas.imap.backup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class MailLog {
+
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int MAX_SEGMENTS = 1 << 14;
+
+    // Offsets of the records in the mail index, stored as offset + 1 so that 0 marks a free slot
+    private final AtomicReferenceArray<AtomicLongArray> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicInteger published = new AtomicInteger();
+
+    int append(long offset) {
+        int index = reserved.getAndIncrement();
+        getSegment(index >>> SEGMENT_BITS).set(index & (SEGMENT_SIZE - 1), offset + 1);
+        publish();
+        return index;
+    }
+
+    int size() {
+        return published.get();
+    }
+
+    long get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return segments.get(index >>> SEGMENT_BITS).get(index & (SEGMENT_SIZE - 1)) - 1;
+    }
+
+    long[] snapshot(int from) {
+        int to = size();
+        long[] offsets = new long[Math.max(0, to - from)];
+        for (int index = from; index < to; index++) {
+            offsets[index - from] = get(index);
+        }
+        return offsets;
+    }
+
+    private AtomicLongArray getSegment(int segmentIndex) {
+        if (segmentIndex >= MAX_SEGMENTS) {
+            throw new IllegalStateException("Mail log is full");
+        }
+        AtomicLongArray segment = segments.get(segmentIndex);
+        if (segment == null) {
+            segments.compareAndSet(segmentIndex, null, new AtomicLongArray(SEGMENT_SIZE));
+            segment = segments.get(segmentIndex);
+        }
+        return segment;
+    }
+
+    private void publish() {
+        // Appends may finish out of order, readers only see the gap-free prefix
+        int index = published.get();
+        while (index < reserved.get() && isSet(index)) {
+            published.compareAndSet(index, index + 1);
+            index = published.get();
+        }
+    }
+
+    private boolean isSet(int index) {
+        AtomicLongArray segment = segments.get(index >>> SEGMENT_BITS);
+        return segment != null && segment.get(index & (SEGMENT_SIZE - 1)) != 0;
+    }
+
+}
@@ -0,0 +1,137 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Length and CRC32C of every file of a completed mail, so a backup can be verified without the server sending bodies again
+class MailManifest implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailManifest.class);
+
+    static final String FILE_NAME = "mail_manifest.txt";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+
+    MailManifest(Path accountPath) throws IOException {
+        this.channel = FileChannel.open(accountPath.resolve(FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // One line per mail: hash, then name, length and checksum of each file, separated by tabs
+    void add(String hash, List<Entry> files) throws IOException {
+        StringBuilder line = new StringBuilder(hash);
+        for (Entry file : files) {
+            line.append('\t').append(file.getName())
+                    .append('\t').append(file.getLength())
+                    .append('\t').append(Long.toHexString(file.getChecksum()));
+        }
+        line.append(System.lineSeparator());
+        ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (this) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Later lines win, a mail folder completed in place by a later run lists all of its files again
+    static Map<String, List<Entry>> load(Path accountPath) throws IOException {
+        Path file = accountPath.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<Entry>> mails = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length % 3 != 1) {
+                    LOGGER.warn("Ignoring invalid manifest entry: {}", line);
+                    continue;
+                }
+                List<Entry> files = new ArrayList<>(parts.length / 3);
+                try {
+                    for (int index = 1; index < parts.length; index += 3) {
+                        files.add(new Entry(parts[index], Long.parseLong(parts[index + 1]), Long.parseUnsignedLong(parts[index + 2], 16)));
+                    }
+                } catch (NumberFormatException exception) {
+                    LOGGER.warn("Ignoring invalid manifest entry: {}", line);
+                    continue;
+                }
+                mails.put(parts[0], files);
+            }
+        }
+        LOGGER.info("Loaded manifest of {} mails from {}", mails.size(), file);
+        return mails;
+    }
+
+    static Entry checksum(Path file) throws IOException {
+        CRC32C checksum = new CRC32C();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                checksum.update(buffer, 0, read);
+                length += read;
+            }
+        }
+        return new Entry(file.getFileName().toString(), length, checksum.getValue());
+    }
+
+    static Entry checksum(String name, byte[] content) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(content, 0, content.length);
+        return new Entry(name, content.length, checksum.getValue());
+    }
+
+    static class Entry {
+
+        private final String name;
+        private final long length;
+        private final long checksum;
+
+        Entry(String name, long length, long checksum) {
+            this.name = name;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getChecksum() {
+            return checksum;
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package net.skoczylas.imap.backup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+class MboxOutputStream extends FilterOutputStream {
+
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    // Start of the current line that may still turn out to be a From line (mboxrd quoting)
+    private final byte[] pending = new byte[1024];
+    private int pendingSize = 0;
+    private boolean lineStart = true;
+    private boolean carriageReturn = false;
+    private boolean lastWasNewline = true;
+
+    MboxOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        // Line endings are converted to LF, the usual form in mbox files
+        byte b = (byte) value;
+        if (carriageReturn) {
+            carriageReturn = false;
+            if (b != '\n') {
+                process((byte) '\r');
+            }
+        }
+        if (b == '\r') {
+            carriageReturn = true;
+        } else {
+            process(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(bytes[i]);
+        }
+    }
+
+    void endMessage() throws IOException {
+        if (carriageReturn) {
+            carriageReturn = false;
+            process((byte) '\r');
+        }
+        if (pendingSize > 0) {
+            flushPending();
+        }
+        if (!lastWasNewline) {
+            emit('\n');
+        }
+        emit('\n');
+        lineStart = true;
+    }
+
+    private void process(byte b) throws IOException {
+        if (!lineStart) {
+            emit(b);
+            return;
+        }
+        pending[pendingSize++] = b;
+        int quotes = 0;
+        while (quotes < pendingSize && pending[quotes] == '>') {
+            quotes++;
+        }
+        int matched = pendingSize - quotes;
+        if (pendingSize == pending.length || matched > FROM.length || !isFromPrefix(quotes, matched)) {
+            flushPending();
+        } else if (matched == FROM.length) {
+            out.write('>');
+            flushPending();
+        }
+    }
+
+    private boolean isFromPrefix(int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if (pending[start + i] != FROM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void flushPending() throws IOException {
+        int size = pendingSize;
+        pendingSize = 0;
+        lineStart = false;
+        for (int i = 0; i < size; i++) {
+            emit(pending[i]);
+        }
+    }
+
+    private void emit(int b) throws IOException {
+        out.write(b);
+        lastWasNewline = b == '\n';
+        lineStart = lastWasNewline;
+    }
+
+}
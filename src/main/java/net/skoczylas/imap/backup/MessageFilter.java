@@ -0,0 +1,150 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.mail.Flags;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SizeTerm;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+class MessageFilter {
+
+    private static final Pattern RELATIVE_DAYS = Pattern.compile("\\d+d");
+
+    private final SearchTerm searchTerm;
+    private final List<Pattern> includedFolders;
+    private final List<Pattern> excludedFolders;
+
+    MessageFilter(String since, String before, long minSize, long maxSize, String flags, String includedFolders, String excludedFolders) {
+        List<SearchTerm> terms = new ArrayList<>();
+        parseDate(since).ifPresent(date -> terms.add(new ReceivedDateTerm(ComparisonTerm.GE, date)));
+        parseDate(before).ifPresent(date -> terms.add(new ReceivedDateTerm(ComparisonTerm.LT, date)));
+        // IMAP only knows LARGER and SMALLER, other comparisons would make the client search itself.
+        // Message sizes are 32 bit numbers, a larger maximum includes every message
+        if (minSize > 0) {
+            terms.add(new SizeTerm(ComparisonTerm.GT, (int) Math.min(minSize - 1, Integer.MAX_VALUE)));
+        }
+        if (maxSize > 0 && maxSize < Integer.MAX_VALUE) {
+            terms.add(new SizeTerm(ComparisonTerm.LT, (int) maxSize + 1));
+        }
+        terms.addAll(parseFlags(flags));
+        this.searchTerm = terms.isEmpty() ? null : terms.size() == 1 ? terms.get(0) : new AndTerm(terms.toArray(new SearchTerm[0]));
+        this.includedFolders = parsePatterns(includedFolders);
+        this.excludedFolders = parsePatterns(excludedFolders);
+    }
+
+    static MessageFilter of(BackupSettings settings) {
+        return new MessageFilter(settings.getSince(), settings.getBefore(), settings.getMinSize(), settings.getMaxSize(),
+                settings.getFlags(), settings.getIncludedFolders(), settings.getExcludedFolders());
+    }
+
+    // Evaluated by the server with SEARCH, so messages outside the filter are never fetched
+    Optional<SearchTerm> getSearchTerm() {
+        return Optional.ofNullable(searchTerm);
+    }
+
+    boolean includes(String folderName) {
+        if (!includedFolders.isEmpty() && includedFolders.stream().noneMatch(pattern -> pattern.matcher(folderName).matches())) {
+            return false;
+        }
+        return excludedFolders.stream().noneMatch(pattern -> pattern.matcher(folderName).matches());
+    }
+
+    // Dates are yyyy-MM-dd or a number of days back from today, e.g. 30d
+    private static Optional<Date> parseDate(String value) {
+        if (StringUtils.isBlank(value)) {
+            return Optional.empty();
+        }
+        String trimmed = value.trim();
+        LocalDate date;
+        if (RELATIVE_DAYS.matcher(trimmed).matches()) {
+            date = LocalDate.now().minusDays(Long.parseLong(trimmed.substring(0, trimmed.length() - 1)));
+        } else {
+            try {
+                date = LocalDate.parse(trimmed);
+            } catch (DateTimeParseException exception) {
+                throw new IllegalArgumentException(String.format("Invalid date %s, use yyyy-MM-dd or a number of days like 30d", value), exception);
+            }
+        }
+        return Optional.of(Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant()));
+    }
+
+    // Comma separated flag names, a leading ! selects messages without the flag (e.g. seen,!deleted)
+    private static List<SearchTerm> parseFlags(String value) {
+        if (StringUtils.isBlank(value)) {
+            return Collections.emptyList();
+        }
+        List<SearchTerm> terms = new ArrayList<>();
+        for (String flag : value.split(",")) {
+            String name = flag.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            boolean set = !name.startsWith("!");
+            terms.add(new FlagTerm(toFlags(set ? name : name.substring(1)), set));
+        }
+        return terms;
+    }
+
+    private static Flags toFlags(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "seen":
+                return new Flags(Flags.Flag.SEEN);
+            case "answered":
+                return new Flags(Flags.Flag.ANSWERED);
+            case "flagged":
+                return new Flags(Flags.Flag.FLAGGED);
+            case "deleted":
+                return new Flags(Flags.Flag.DELETED);
+            case "draft":
+                return new Flags(Flags.Flag.DRAFT);
+            case "recent":
+                return new Flags(Flags.Flag.RECENT);
+            default:
+                // Anything else is a user defined keyword
+                return new Flags(name);
+        }
+    }
+
+    // Folder patterns use * for any characters and ? for a single one, matched case insensitive against the full name
+    private static List<Pattern> parsePatterns(String value) {
+        if (StringUtils.isBlank(value)) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotBlank)
+                .map(MessageFilter::toPattern)
+                .collect(Collectors.toList());
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char character : glob.toCharArray()) {
+            if (character == '*') {
+                regex.append(".*");
+            } else if (character == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(character)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+}
@@ -0,0 +1,69 @@
+package net.skoczylas.imap.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the files of one mail while it is read, so they are written together by a single task
+class MessageWrite {
+
+    private final List<File> files = new ArrayList<>();
+    private boolean infoFile = false;
+
+    synchronized void addFile(String fileName, InputStream content) {
+        files.add(new File(fileName, content, null));
+    }
+
+    synchronized void addFile(String fileName, String content) {
+        files.add(new File(fileName, null, content));
+    }
+
+    synchronized void addInfoFile() {
+        infoFile = true;
+    }
+
+    synchronized List<File> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    synchronized boolean hasInfoFile() {
+        return infoFile;
+    }
+
+    synchronized boolean isEmpty() {
+        return files.isEmpty() && !infoFile;
+    }
+
+    static class File {
+
+        private final String fileName;
+        private final InputStream stream;
+        private final String text;
+
+        File(String fileName, InputStream stream, String text) {
+            this.fileName = fileName;
+            this.stream = stream;
+            this.text = text;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        boolean isText() {
+            return text != null;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        InputStream getStream() {
+            return stream != null ? stream : new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+    }
+
+}
@@ -0,0 +1,261 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Hashtable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+class Metrics implements MetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    static final String FILE_NAME = "metrics.json";
+
+    private static final String DOMAIN = "net.skoczylas.imap.backup";
+    private static final int SUMMARY_SECONDS = 10;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder messagesRead = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder partsSkipped = new LongAdder();
+    private final LongAdder bytesSkipped = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, Long> folderMillis = new ConcurrentHashMap<>();
+    private final Histogram fetchMicros = new Histogram();
+    private final Histogram readMicros = new Histogram();
+    private final Histogram writeMicros = new Histogram();
+
+    private volatile IntSupplier writerQueueDepth = () -> 0;
+    private ScheduledFuture<?> summaryTask;
+    private ObjectName objectName;
+    private Path file;
+
+    void start(Path accountPath, String host, String account, ScheduledExecutorService scheduler) {
+        this.file = accountPath.resolve(FILE_NAME);
+        try {
+            // Only set once registered, so stop never removes the bean of another account
+            objectName = register(ManagementFactory.getPlatformMBeanServer(), host, account);
+        } catch (JMException exception) {
+            LOGGER.warn("Could not register metrics: {}", exception.getMessage());
+            objectName = null;
+        }
+        // The scheduler is shared by all accounts of the writer pool, stop only cancels this task
+        summaryTask = scheduler.scheduleWithFixedDelay(this::writeSummary, SUMMARY_SECONDS, SUMMARY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (summaryTask != null) {
+            summaryTask.cancel(false);
+            writeSummary();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException exception) {
+                LOGGER.debug("Could not unregister metrics: {}", exception.getMessage());
+            }
+        }
+    }
+
+    // The same account name on another server, or an account listed twice, gets a bean with an instance number
+    private ObjectName register(MBeanServer server, String host, String account) throws JMException {
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("host", ObjectName.quote(host != null ? host : "unknown"));
+        properties.put("name", ObjectName.quote(account));
+        ObjectName name = new ObjectName(DOMAIN, properties);
+        try {
+            server.registerMBean(this, name);
+            return name;
+        } catch (InstanceAlreadyExistsException exception) {
+            properties.put("instance", String.valueOf(INSTANCES.incrementAndGet()));
+            ObjectName uniqueName = new ObjectName(DOMAIN, properties);
+            server.registerMBean(this, uniqueName);
+            return uniqueName;
+        }
+    }
+
+    void watchWriterQueue(IntSupplier queueDepth) {
+        this.writerQueueDepth = queueDepth;
+    }
+
+    void messageRead(long bytes, long startNanos) {
+        messagesRead.increment();
+        bytesFetched.add(Math.max(0, bytes));
+        readMicros.record(micros(startNanos));
+    }
+
+    void fetched(long startNanos) {
+        fetchMicros.record(micros(startNanos));
+    }
+
+    void written(long bytes, long startNanos) {
+        filesWritten.increment();
+        bytesWritten.add(bytes);
+        writeMicros.record(micros(startNanos));
+    }
+
+    void partSkipped(long bytes) {
+        partsSkipped.increment();
+        bytesSkipped.add(Math.max(0, bytes));
+    }
+
+    void folderRead(String folderName, long startNanos) {
+        folderMillis.put(folderName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    void error(Exception exception) {
+        errors.computeIfAbsent(exception.getClass().getSimpleName(), type -> new LongAdder()).increment();
+    }
+
+    @Override
+    public long getMessagesRead() {
+        return messagesRead.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? messagesRead.sum() / seconds : 0;
+    }
+
+    @Override
+    public long getBytesFetched() {
+        return bytesFetched.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getFilesWritten() {
+        return filesWritten.sum();
+    }
+
+    @Override
+    public long getPartsSkipped() {
+        return partsSkipped.sum();
+    }
+
+    @Override
+    public long getBytesSkipped() {
+        return bytesSkipped.sum();
+    }
+
+    @Override
+    public int getWriterQueueDepth() {
+        return writerQueueDepth.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> values = new TreeMap<>();
+        errors.forEach((type, count) -> values.put(type, count.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getFolderMillis() {
+        return new TreeMap<>(folderMillis);
+    }
+
+    @Override
+    public Map<String, Long> getFetchMicros() {
+        return fetchMicros.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getReadMicros() {
+        return readMicros.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getWriteMicros() {
+        return writeMicros.toMap();
+    }
+
+    private void writeSummary() {
+        LOGGER.info("Progress: {} messages ({} per second), {} bytes fetched, {} bytes written, writer queue {}, errors {}",
+                getMessagesRead(), String.format("%.1f", getMessagesPerSecond()), getBytesFetched(), getBytesWritten(), getWriterQueueDepth(), getErrors());
+        try {
+            Path tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+            Files.writeString(tempFile, toJson(), StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            LOGGER.error("Could not write metrics {}: {}", file, exception.getMessage());
+        }
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"elapsedMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)).append(",\n");
+        json.append("  \"messagesRead\": ").append(getMessagesRead()).append(",\n");
+        json.append("  \"messagesPerSecond\": ").append(String.format(Locale.ROOT, "%.2f", getMessagesPerSecond())).append(",\n");
+        json.append("  \"bytesFetched\": ").append(getBytesFetched()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+        json.append("  \"filesWritten\": ").append(getFilesWritten()).append(",\n");
+        json.append("  \"partsSkipped\": ").append(getPartsSkipped()).append(",\n");
+        json.append("  \"bytesSkipped\": ").append(getBytesSkipped()).append(",\n");
+        json.append("  \"writerQueueDepth\": ").append(getWriterQueueDepth()).append(",\n");
+        json.append("  \"errors\": ").append(toJson(getErrors())).append(",\n");
+        json.append("  \"folderMillis\": ").append(toJson(getFolderMillis())).append(",\n");
+        json.append("  \"fetchMicros\": ").append(toJson(getFetchMicros())).append(",\n");
+        json.append("  \"readMicros\": ").append(toJson(getReadMicros())).append(",\n");
+        json.append("  \"writeMicros\": ").append(toJson(getWriteMicros())).append("\n");
+        return json.append("}\n").toString();
+    }
+
+    private static String toJson(Map<String, Long> values) {
+        StringBuilder json = new StringBuilder("{");
+        values.forEach((key, value) -> {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(escape(key)).append("\": ").append(value);
+        });
+        return json.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+}
@@ -0,0 +1,33 @@
+package net.skoczylas.imap.backup;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    long getMessagesRead();
+
+    double getMessagesPerSecond();
+
+    long getBytesFetched();
+
+    long getBytesWritten();
+
+    long getFilesWritten();
+
+    long getPartsSkipped();
+
+    long getBytesSkipped();
+
+    int getWriterQueueDepth();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Long> getFolderMillis();
+
+    Map<String, Long> getFetchMicros();
+
+    Map<String, Long> getReadMicros();
+
+    Map<String, Long> getWriteMicros();
+
+}
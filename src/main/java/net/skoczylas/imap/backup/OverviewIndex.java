@@ -0,0 +1,87 @@
+package net.skoczylas.imap.backup;
+
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+
+class OverviewIndex {
+
+    private static final DateTimeFormatter YEAR_FORMATTER = DateTimeFormatter.ofPattern("yyyy");
+
+    private final Map<String, Partition> partitions = new TreeMap<>();
+
+    private int count = 0;
+
+    void add(long offset, MailInfo mailInfo) {
+        List<String> folder = new ArrayList<>(mailInfo.getFolder());
+        String year = YEAR_FORMATTER.format(mailInfo.getReceivedAt());
+        String key = String.join("/", folder) + "/" + year;
+        partitions.computeIfAbsent(key, name -> new Partition(folder, year)).add(offset);
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    Collection<Partition> getPartitions() {
+        return partitions.values();
+    }
+
+    List<Partition> takeDirtyPartitions() {
+        List<Partition> dirtyPartitions = partitions.values().stream()
+                .filter(Partition::isDirty)
+                .collect(Collectors.toList());
+        dirtyPartitions.forEach(Partition::clean);
+        return dirtyPartitions;
+    }
+
+    static class Partition {
+
+        private final List<String> folder;
+        private final String year;
+
+        private long[] offsets = new long[16];
+        private int size = 0;
+        private boolean dirty = false;
+
+        Partition(List<String> folder, String year) {
+            this.folder = folder;
+            this.year = year;
+        }
+
+        List<String> getFolder() {
+            return folder;
+        }
+
+        String getYear() {
+            return year;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        long[] getOffsets() {
+            return Arrays.copyOf(offsets, size);
+        }
+
+        boolean isDirty() {
+            return dirty;
+        }
+
+        private void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+            dirty = true;
+        }
+
+        private void clean() {
+            dirty = false;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.activation.MimeType;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+class PartFilter {
+
+    private final long maxPartSize;
+    private final List<String> allowedTypes;
+    private final List<String> deniedTypes;
+    private final boolean skipInlineImages;
+
+    PartFilter(long maxPartSize, String allowedTypes, String deniedTypes, boolean skipInlineImages) {
+        this.maxPartSize = maxPartSize;
+        this.allowedTypes = parseTypes(allowedTypes);
+        this.deniedTypes = parseTypes(deniedTypes);
+        this.skipInlineImages = skipInlineImages;
+    }
+
+    static PartFilter of(BackupSettings settings) {
+        return new PartFilter(settings.getMaxPartSize(), settings.getAllowedTypes(), settings.getDeniedTypes(), settings.isSkipInlineImages());
+    }
+
+    boolean isActive() {
+        return maxPartSize > 0 || !allowedTypes.isEmpty() || !deniedTypes.isEmpty() || skipInlineImages;
+    }
+
+    // Only uses the BODYSTRUCTURE of IMAP parts, so a rejected part is never downloaded
+    Optional<String> getRejection(Part part, MimeType mimeType) throws MessagingException {
+        if (mimeType == null || "multipart".equalsIgnoreCase(mimeType.getPrimaryType())) {
+            return Optional.empty();
+        }
+        String baseType = mimeType.getBaseType().toLowerCase(Locale.ROOT);
+        int size = part.getSize();
+        if (maxPartSize > 0 && size > maxPartSize) {
+            return Optional.of(String.format("size %d > %d", size, maxPartSize));
+        }
+        if (!allowedTypes.isEmpty() && allowedTypes.stream().noneMatch(type -> matches(type, baseType))) {
+            return Optional.of(String.format("type %s not allowed", baseType));
+        }
+        if (deniedTypes.stream().anyMatch(type -> matches(type, baseType))) {
+            return Optional.of(String.format("type %s denied", baseType));
+        }
+        if (skipInlineImages && baseType.startsWith("image/") && isInline(part)) {
+            return Optional.of("inline image");
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isInline(Part part) throws MessagingException {
+        if (Part.INLINE.equalsIgnoreCase(part.getDisposition())) {
+            return true;
+        }
+        return part.getDisposition() == null && part instanceof MimeBodyPart && ((MimeBodyPart) part).getContentID() != null;
+    }
+
+    private static boolean matches(String pattern, String baseType) {
+        if (pattern.endsWith("/*")) {
+            return baseType.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+        return pattern.equals(baseType);
+    }
+
+    private static List<String> parseTypes(String types) {
+        if (StringUtils.isBlank(types)) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(types.split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotBlank)
+                .map(type -> type.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toList());
+    }
+
+}
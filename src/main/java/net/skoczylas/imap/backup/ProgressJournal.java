@@ -0,0 +1,158 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+class ProgressJournal implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProgressJournal.class);
+
+    static final String FILE_NAME = "progress.journal";
+
+    private static final String STARTED = "S";
+    private static final String COMPLETED = "C";
+
+    private final Path file;
+    private final LongSet completed = new LongSet();
+    private final FileChannel channel;
+    private final Durability durability;
+
+    ProgressJournal(Path accountPath) throws IOException {
+        this(accountPath, Durability.NONE);
+    }
+
+    ProgressJournal(Path accountPath, Durability durability) throws IOException {
+        this.file = accountPath.resolve(FILE_NAME);
+        this.durability = durability;
+        if (Files.exists(file)) {
+            Map<String, String> incomplete = load();
+            redo(accountPath, incomplete);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    boolean isCompleted(String hash) {
+        return completed.contains(toKey(hash));
+    }
+
+    // The start is synced before the files of the mail are written, so a restart finds the staging folders it leaves
+    void start(String hash, Path relativePath) throws IOException {
+        append(String.format("%s %s %s%n", STARTED, hash, relativePath));
+        if (durability == Durability.MESSAGE) {
+            force();
+        }
+    }
+
+    // With batch durability the writer syncs the journal once per batch
+    void complete(String hash) throws IOException {
+        append(String.format("%s %s%n", COMPLETED, hash));
+        if (durability == Durability.MESSAGE) {
+            force();
+        }
+        completed.add(toKey(hash));
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    int getCompletedCount() {
+        return completed.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (durability != Durability.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+
+    private synchronized void append(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Map<String, String> load() throws IOException {
+        Map<String, String> incomplete = new HashMap<>();
+        // Completed entries are written to a compacted journal while reading, started entries are dropped
+        Path compactFile = file.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(compactFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (STARTED.equals(parts[0]) && parts.length == 3) {
+                    incomplete.put(parts[1], parts[2]);
+                } else if (COMPLETED.equals(parts[0]) && parts.length == 2) {
+                    incomplete.remove(parts[1]);
+                    if (completed.add(toKey(parts[1]))) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                } else {
+                    LOGGER.warn("Ignoring invalid journal entry: {}", line);
+                }
+            }
+        }
+        Files.move(compactFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Loaded {} completed and {} incomplete mails from {}", completed.size(), incomplete.size(), file);
+        return incomplete;
+    }
+
+    // Only staging folders are removed. A mail folder is moved into place once complete, or it holds a mail of an
+    // earlier run that is completed in place and may be the only copy left after the server expunged the message
+    private void redo(Path accountPath, Map<String, String> incomplete) {
+        incomplete.forEach((hash, relativePath) -> {
+            Path path = accountPath.resolve(relativePath);
+            if (!path.normalize().startsWith(accountPath.normalize())) {
+                return;
+            }
+            // Staging folders of the writer are named .<mail folder>.<random>
+            if (Files.isDirectory(path.getParent())) {
+                try (DirectoryStream<Path> stagingFolders = Files.newDirectoryStream(path.getParent(), "." + path.getFileName() + ".*")) {
+                    stagingFolders.forEach(this::remove);
+                } catch (IOException exception) {
+                    LOGGER.error("Could not list staging folders of {}: {}", path, exception.getMessage());
+                }
+            }
+        });
+    }
+
+    private void remove(Path path) {
+        LOGGER.info("Removing staging folder of incomplete mail {}", path);
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(ProgressJournal::delete);
+        } catch (IOException exception) {
+            LOGGER.error("Could not remove staging folder {}: {}", path, exception.getMessage());
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException exception) {
+            LOGGER.error("Could not delete {}: {}", path, exception.getMessage());
+        }
+    }
+
+    static long toKey(String hash) {
+        return Long.parseUnsignedLong(hash.substring(0, 16), 16);
+    }
+
+}
@@ -0,0 +1,307 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UID;
+import jakarta.mail.Flags;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+class RawExporter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RawExporter.class);
+
+    static final String MBOX = "mbox";
+    static final String MAILDIR = "maildir";
+    static final String JOURNAL_FILE = "exported.journal";
+    // Added in front of every message in an mbox, like the Status headers of mail clients, so exports can be found again
+    static final String HASH_HEADER = "X-IMAP-Backup-Hash";
+
+    private static final DateTimeFormatter MBOX_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+    private static final int MEMORY_THRESHOLD = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FETCH_BLOCK_SIZE = 256 * 1024;
+    private static final Pattern MAILDIR_NAME = Pattern.compile("\\d+\\.([0-9a-f]{64})\\.imap-backup(:2,.*)?");
+    private static final Pattern MBOX_HASH = Pattern.compile(HASH_HEADER + ": ([0-9a-f]{64})");
+
+    private final String format;
+    private final Path root;
+    private final Path tempFolder;
+    private final Map<Path, FileChannel> mboxFiles = new HashMap<>();
+    // Exports are tracked apart from the backup, so a backup made without them can be exported later
+    private final LongSet exportedKeys = new LongSet();
+    private final FileChannel journal;
+
+    RawExporter(Path accountPath, String format) throws IOException {
+        if (!MBOX.equals(format) && !MAILDIR.equals(format)) {
+            throw new IllegalArgumentException(String.format("Unknown raw format: %s", format));
+        }
+        this.format = format;
+        this.root = accountPath.resolve(format);
+        this.tempFolder = root.resolve("tmp");
+        Path journalFile = root.resolve(JOURNAL_FILE);
+        boolean rebuild = Files.isDirectory(root) && !Files.exists(journalFile);
+        Files.createDirectories(tempFolder);
+        if (Files.exists(journalFile)) {
+            load(journalFile);
+        }
+        this.journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (rebuild) {
+            rebuild();
+        }
+    }
+
+    long export(MailInfo mailInfo, Message message) throws IOException, MessagingException {
+        return MBOX.equals(format) ? appendToMbox(mailInfo, message) : writeToMaildir(mailInfo, message);
+    }
+
+    boolean isExported(String hash) {
+        return exportedKeys.contains(ProgressJournal.toKey(hash));
+    }
+
+    void exported(String hash) {
+        exported(ProgressJournal.toKey(hash));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : mboxFiles.values()) {
+            channel.close();
+        }
+        mboxFiles.clear();
+        journal.close();
+    }
+
+    private void exported(long key) {
+        if (!exportedKeys.add(key)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(String.format("%016x%n", key).getBytes(StandardCharsets.US_ASCII));
+        try {
+            synchronized (journal) {
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not journal export of {}: {}", Long.toHexString(key), exception.getMessage());
+        }
+    }
+
+    private void load(Path journalFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    exportedKeys.add(Long.parseUnsignedLong(line.trim(), 16));
+                } catch (NumberFormatException exception) {
+                    LOGGER.warn("Ignoring invalid export journal entry: {}", line);
+                }
+            }
+        }
+        LOGGER.info("Loaded {} exported mails from {}", exportedKeys.size(), journalFile);
+    }
+
+    // The journal only saves reading the exports, without it the exported mails are found by their hash in the files
+    private void rebuild() throws IOException {
+        LOGGER.info("No export journal found, looking for exported mails in {}", root);
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = new ArrayList<>();
+            paths.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (MAILDIR.equals(format)) {
+                Matcher matcher = MAILDIR_NAME.matcher(name);
+                // Files in tmp were never moved into place
+                if (matcher.matches() && "cur".equals(String.valueOf(file.getParent().getFileName()))) {
+                    exported(matcher.group(1));
+                }
+            } else if (name.endsWith("." + MBOX)) {
+                scanMbox(file);
+            }
+        }
+        LOGGER.info("Found {} exported mails in {}", exportedKeys.size(), root);
+    }
+
+    // The hash header directly follows the separator line, the same line in a message body does not count
+    private void scanMbox(Path mboxFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(mboxFile, StandardCharsets.ISO_8859_1)) {
+            boolean separator = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (separator) {
+                    Matcher matcher = MBOX_HASH.matcher(line);
+                    if (matcher.matches()) {
+                        exported(matcher.group(1));
+                    }
+                }
+                separator = line.startsWith("From ");
+            }
+        }
+    }
+
+    // IMAPMessage.writeTo loads the whole message into memory, it is fetched in blocks by UID instead
+    private static void writeMessage(Message message, OutputStream output) throws IOException, MessagingException {
+        if (!(message.getFolder() instanceof IMAPFolder)) {
+            message.writeTo(output);
+            return;
+        }
+        IMAPFolder folder = (IMAPFolder) message.getFolder();
+        long uid = folder.getUID(message);
+        for (long start = 0; ; start += FETCH_BLOCK_SIZE) {
+            long blockStart = start;
+            ByteArray block = (ByteArray) folder.doCommand(protocol -> fetchBlock(protocol, uid, blockStart));
+            if (block == null) {
+                if (start == 0) {
+                    throw new MessagingException(String.format("Server returned no content for UID %d", uid));
+                }
+                return;
+            }
+            output.write(block.getBytes(), block.getStart(), block.getCount());
+            if (block.getCount() < FETCH_BLOCK_SIZE) {
+                return;
+            }
+        }
+    }
+
+    // BODY.PEEK leaves the seen flag alone, all other untagged answers are passed on to the folder
+    private static ByteArray fetchBlock(IMAPProtocol protocol, long uid, long start) throws ProtocolException {
+        Response[] responses = protocol.command(String.format("UID FETCH %d (BODY.PEEK[]<%d.%d>)", uid, start, FETCH_BLOCK_SIZE), null);
+        ByteArray block = null;
+        for (int index = 0; index < responses.length - 1; index++) {
+            if (!(responses[index] instanceof FetchResponse)) {
+                continue;
+            }
+            FetchResponse fetchResponse = (FetchResponse) responses[index];
+            UID uidItem = fetchResponse.getItem(UID.class);
+            BODY body = fetchResponse.getItem(BODY.class);
+            if (uidItem != null && uidItem.uid == uid && body != null) {
+                block = body.getByteArray();
+                responses[index] = null;
+            }
+        }
+        protocol.notifyResponseHandlers(responses);
+        protocol.handleResult(responses[responses.length - 1]);
+        return block;
+    }
+
+    private long appendToMbox(MailInfo mailInfo, Message message) throws IOException, MessagingException {
+        // The message is downloaded before the mbox is locked, so slow fetches do not block other writers
+        DeferredFileOutputStream buffer = new DeferredFileOutputStream(MEMORY_THRESHOLD, ".", ".part", tempFolder.toFile());
+        long size;
+        String sender = mailInfo.getFrom().stream().findFirst().map(MailAddress::getAddress).orElse("MAILER-DAEMON");
+        String separator = String.format("From %s %s\n", sender, MBOX_DATE_FORMATTER.format(mailInfo.getReceivedAt().atOffset(ZoneOffset.UTC)));
+        try (CountingOutputStream counting = new CountingOutputStream(buffer);
+             BufferedOutputStream buffered = new BufferedOutputStream(counting, BUFFER_SIZE);
+             MboxOutputStream mbox = new MboxOutputStream(buffered)) {
+            // The separator line goes around the quoting, From lines inside the message are escaped
+            buffered.write(separator.getBytes(StandardCharsets.US_ASCII));
+            buffered.write(String.format("%s: %s\n", HASH_HEADER, mailInfo.getHash()).getBytes(StandardCharsets.US_ASCII));
+            writeMessage(message, mbox);
+            mbox.endMessage();
+            mbox.flush();
+            size = counting.getByteCount();
+        }
+        try {
+            append(getFolderPath(mailInfo, MBOX), buffer);
+        } finally {
+            if (!buffer.isInMemory()) {
+                Files.deleteIfExists(buffer.getFile().toPath());
+            }
+        }
+        return size;
+    }
+
+    private synchronized void append(Path mboxFile, DeferredFileOutputStream buffer) throws IOException {
+        FileChannel channel = mboxFiles.get(mboxFile);
+        if (channel == null) {
+            Files.createDirectories(mboxFile.getParent());
+            channel = FileChannel.open(mboxFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            mboxFiles.put(mboxFile, channel);
+        }
+        buffer.writeTo(Channels.newOutputStream(channel));
+    }
+
+    private long writeToMaildir(MailInfo mailInfo, Message message) throws IOException, MessagingException {
+        Path folder = getFolderPath(mailInfo, null);
+        Path tmp = folder.resolve("tmp");
+        Path cur = folder.resolve("cur");
+        Files.createDirectories(tmp);
+        Files.createDirectories(folder.resolve("new"));
+        Files.createDirectories(cur);
+
+        // The hash keeps the name stable, so a message exported twice replaces itself
+        String name = String.format("%d.%s.imap-backup", mailInfo.getReceivedAt().toEpochSecond(ZoneOffset.UTC), mailInfo.getHash());
+        Path tempFile = tmp.resolve(name);
+        long size;
+        try (CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE))) {
+            writeMessage(message, output);
+            output.flush();
+            size = output.getByteCount();
+        } catch (IOException | MessagingException exception) {
+            Files.deleteIfExists(tempFile);
+            throw exception;
+        }
+        Files.move(tempFile, cur.resolve(name + ":2," + getMaildirFlags(message.getFlags())), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    private Path getFolderPath(MailInfo mailInfo, String extension) {
+        List<String> folder = new ArrayList<>();
+        mailInfo.getFolder().forEach(name -> folder.add(Writer.normalize(name)));
+        if (extension != null) {
+            int last = folder.size() - 1;
+            folder.set(last, folder.get(last) + "." + extension);
+        }
+        return Paths.get(root.toString(), folder.toArray(new String[0]));
+    }
+
+    private static String getMaildirFlags(Flags flags) {
+        if (flags == null) {
+            return "";
+        }
+        // Maildir expects the flags in ASCII order
+        StringBuilder maildirFlags = new StringBuilder();
+        if (flags.contains(Flags.Flag.DRAFT)) {
+            maildirFlags.append('D');
+        }
+        if (flags.contains(Flags.Flag.FLAGGED)) {
+            maildirFlags.append('F');
+        }
+        if (flags.contains(Flags.Flag.ANSWERED)) {
+            maildirFlags.append('R');
+        }
+        if (flags.contains(Flags.Flag.SEEN)) {
+            maildirFlags.append('S');
+        }
+        if (flags.contains(Flags.Flag.DELETED)) {
+            maildirFlags.append('T');
+        }
+        return maildirFlags.toString();
+    }
+
+}
@@ -0,0 +1,580 @@
+package net.skoczylas.imap.backup;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class SearchIndex implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndex.class);
+
+    static final String FOLDER_NAME = "search";
+
+    private static final int MAGIC = 0x494D4253;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 16;
+    private static final int BUFFER_DOCS = 5000;
+    private static final int MERGE_FACTOR = 8;
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final List<String> TEXT_FIELDS = Arrays.asList("subject", "from", "to", "folder", "attachment", "body");
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.idx");
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+    private static final Pattern QUERY_WORD = Pattern.compile("[^\\s\"]*\"[^\"]*\"|\\S+");
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private final Path folder;
+    private final Stage flushStage;
+    private final Map<String, Set<String>> pendingTerms = new ConcurrentHashMap<>();
+    private final Object segmentLock = new Object();
+    private final List<CompletableFuture<Void>> flushes = new ArrayList<>();
+
+    private Map<String, Postings> postings = new HashMap<>();
+    private Postings docs = new Postings();
+    private long sequence;
+
+    SearchIndex(Path accountPath, Stage flushStage) throws IOException {
+        this.folder = accountPath.resolve(FOLDER_NAME);
+        this.flushStage = flushStage;
+        Files.createDirectories(folder);
+        this.sequence = listSegments(folder).stream()
+                .mapToLong(SearchIndex::getSequence)
+                .max()
+                .orElse(0);
+    }
+
+    // Body text is collected per mail until the mail gets its place in the mail index
+    void addText(MailInfo mailInfo, String text, boolean html) {
+        String plainText = html ? HTML_TAG.matcher(text).replaceAll(" ") : text;
+        Set<String> terms = pendingTerms.computeIfAbsent(mailInfo.getHash(), hash -> ConcurrentHashMap.newKeySet());
+        tokenize(plainText).forEach(token -> terms.add(term("body", token)));
+    }
+
+    void discard(MailInfo mailInfo) {
+        pendingTerms.remove(mailInfo.getHash());
+    }
+
+    void add(long offset, MailInfo mailInfo) {
+        Set<String> terms = Optional.ofNullable(pendingTerms.remove(mailInfo.getHash())).orElseGet(HashSet::new);
+        addTerms(terms, "subject", mailInfo.getSubject());
+        addTerms(terms, "folder", mailInfo.getFolderPath());
+        mailInfo.getAttachments().forEach(attachment -> addTerms(terms, "attachment", attachment));
+        for (MailAddress address : mailInfo.getFrom()) {
+            addAddress(terms, "from", address);
+        }
+        for (MailAddress address : mailInfo.getTo()) {
+            addAddress(terms, "to", address);
+        }
+        if (mailInfo.getReceivedAt() != null) {
+            String day = DAY_FORMATTER.format(mailInfo.getReceivedAt());
+            terms.add(term("date", day.substring(0, 4)));
+            terms.add(term("date", day.substring(0, 7)));
+            terms.add(term("date", day));
+        }
+
+        Map<String, Postings> full = null;
+        Postings fullDocs = null;
+        synchronized (this) {
+            docs.add(offset);
+            for (String term : terms) {
+                postings.computeIfAbsent(term, key -> new Postings()).add(offset);
+            }
+            if (docs.size() >= BUFFER_DOCS) {
+                full = postings;
+                fullDocs = docs;
+                postings = new HashMap<>();
+                docs = new Postings();
+            }
+        }
+        if (full != null) {
+            flush(full, fullDocs);
+        }
+    }
+
+    // Writing a segment and merging can take seconds, the thread adding mails only hands the buffer over
+    private void flush(Map<String, Postings> segmentPostings, Postings segmentDocs) {
+        CompletableFuture<Void> flush = flushStage.submit(() -> writeSegment(segmentPostings, segmentDocs));
+        if (flush.isCompletedExceptionally()) {
+            // The stage is already shut down
+            writeSegment(segmentPostings, segmentDocs);
+            return;
+        }
+        synchronized (flushes) {
+            flushes.removeIf(CompletableFuture::isDone);
+            flushes.add(flush);
+        }
+    }
+
+    LongSet getIndexedDocs() throws IOException {
+        LongSet indexed = new LongSet();
+        synchronized (segmentLock) {
+            for (Path file : listSegments(folder)) {
+                try (Segment segment = new Segment(file)) {
+                    for (long offset : segment.readDocs()) {
+                        indexed.add(offset);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            for (long offset : docs.toArray()) {
+                indexed.add(offset);
+            }
+        }
+        return indexed;
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<Void>> pendingFlushes;
+        synchronized (flushes) {
+            pendingFlushes = new ArrayList<>(flushes);
+            flushes.clear();
+        }
+        CompletableFuture.allOf(pendingFlushes.toArray(new CompletableFuture[0])).handle((result, exception) -> result).join();
+        Map<String, Postings> remaining;
+        Postings remainingDocs;
+        synchronized (this) {
+            remaining = postings;
+            remainingDocs = docs;
+            postings = new HashMap<>();
+            docs = new Postings();
+        }
+        if (remainingDocs.size() > 0) {
+            writeSegment(remaining, remainingDocs);
+        }
+        if (!pendingTerms.isEmpty()) {
+            LOGGER.debug("Dropping body text of {} mails that were not indexed", pendingTerms.size());
+            pendingTerms.clear();
+        }
+    }
+
+    // Every query word has to match, a word without field matches any text field and a trailing * matches prefixes
+    static long[] search(Path accountPath, String query) throws IOException {
+        List<Path> files = listSegments(accountPath.resolve(FOLDER_NAME));
+        List<Segment> segments = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                segments.add(new Segment(file));
+            }
+            long[] result = null;
+            for (String word : splitQuery(query)) {
+                long[] matches = searchWord(segments, word);
+                result = result == null ? matches : intersect(result, matches);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            return result == null ? new long[0] : result;
+        } finally {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    private static long[] searchWord(List<Segment> segments, String word) throws IOException {
+        String field = null;
+        String value = word;
+        int colon = word.indexOf(':');
+        if (colon > 0 && (TEXT_FIELDS.contains(word.substring(0, colon)) || "date".equals(word.substring(0, colon)))) {
+            field = word.substring(0, colon);
+            value = word.substring(colon + 1);
+        }
+        boolean prefix = value.endsWith("*");
+        if (prefix) {
+            value = value.substring(0, value.length() - 1);
+        }
+        List<String> tokens = "date".equals(field) ? Collections.singletonList(value) : tokenize(value);
+        if (tokens.isEmpty()) {
+            return new long[0];
+        }
+
+        long[] result = null;
+        for (int index = 0; index < tokens.size(); index++) {
+            // Only the last token of a word can be a prefix, "foo-ba*" becomes foo and ba*
+            boolean prefixToken = prefix && index == tokens.size() - 1;
+            List<String> fields = field != null ? Collections.singletonList(field) : TEXT_FIELDS;
+            Postings union = new Postings();
+            for (String name : fields) {
+                String term = term(name, tokens.get(index));
+                for (Segment segment : segments) {
+                    segment.collect(term, prefixToken, union);
+                }
+            }
+            long[] matches = union.toSortedArray();
+            result = result == null ? matches : intersect(result, matches);
+        }
+        return result;
+    }
+
+    private void writeSegment(Map<String, Postings> segmentPostings, Postings segmentDocs) {
+        synchronized (segmentLock) {
+            try {
+                Path file = folder.resolve(getSegmentName(0, ++sequence));
+                Segment.write(file, segmentDocs.toSortedArray(), new TreeSet<>(segmentPostings.keySet()), term -> segmentPostings.get(term).toSortedArray());
+                LOGGER.debug("Wrote search segment {} with {} mails", file.getFileName(), segmentDocs.size());
+                merge();
+            } catch (IOException exception) {
+                LOGGER.error("Could not write search index segment: {}", exception.getMessage());
+            }
+        }
+    }
+
+    // Segments of the same level are merged once there are enough of them, so every mail is rewritten log(n) times
+    private void merge() throws IOException {
+        for (int level = 0; ; level++) {
+            int currentLevel = level;
+            List<Path> files = listSegments(folder).stream()
+                    .filter(file -> getLevel(file) == currentLevel)
+                    .collect(Collectors.toList());
+            if (files.size() < MERGE_FACTOR) {
+                return;
+            }
+            List<Segment> segments = new ArrayList<>();
+            try {
+                Postings mergedDocs = new Postings();
+                SortedSet<String> terms = new TreeSet<>();
+                for (Path file : files) {
+                    Segment segment = new Segment(file);
+                    segments.add(segment);
+                    mergedDocs.addAll(segment.readDocs());
+                    terms.addAll(segment.getTerms());
+                }
+                Path merged = folder.resolve(getSegmentName(level + 1, ++sequence));
+                Segment.write(merged, mergedDocs.toSortedArray(), terms, term -> {
+                    Postings termPostings = new Postings();
+                    for (Segment segment : segments) {
+                        segment.collect(term, false, termPostings);
+                    }
+                    return termPostings.toSortedArray();
+                });
+                LOGGER.debug("Merged {} search segments into {}", files.size(), merged.getFileName());
+            } finally {
+                for (Segment segment : segments) {
+                    segment.close();
+                }
+            }
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void addTerms(Set<String> terms, String field, String text) {
+        if (text != null) {
+            tokenize(text).forEach(token -> terms.add(term(field, token)));
+        }
+    }
+
+    private static void addAddress(Set<String> terms, String field, MailAddress address) {
+        addTerms(terms, field, address.getAddress());
+        addTerms(terms, field, address.getEncodedAddress());
+    }
+
+    private static String term(String field, String token) {
+        return field + ":" + token;
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean letter = index < text.length() && Character.isLetterOrDigit(text.charAt(index));
+            if (letter && start < 0) {
+                start = index;
+            } else if (!letter && start >= 0) {
+                int length = index - start;
+                if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, index).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static long[] intersect(long[] left, long[] right) {
+        long[] result = new long[Math.min(left.length, right.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[size++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static List<Path> listSegments(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(file -> SEGMENT_NAME.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String getSegmentName(int level, long sequence) {
+        return String.format("segment-%d-%010d.idx", level, sequence);
+    }
+
+    private static int getLevel(Path file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    private static long getSequence(Path file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : 0;
+    }
+
+    // Splits on whitespace, double quotes keep words with spaces together (e.g. subject:"annual report")
+    private static List<String> splitQuery(String query) {
+        List<String> words = new ArrayList<>();
+        Matcher matcher = QUERY_WORD.matcher(query);
+        while (matcher.find()) {
+            words.add(matcher.group().replace("\"", ""));
+        }
+        return words;
+    }
+
+    static class Postings {
+
+        private long[] values = new long[4];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(long[] others) {
+            for (long value : others) {
+                add(value);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        long[] toSortedArray() {
+            long[] sorted = toArray();
+            Arrays.sort(sorted);
+            int distinct = 0;
+            for (int index = 0; index < sorted.length; index++) {
+                if (index == 0 || sorted[index] != sorted[index - 1]) {
+                    sorted[distinct++] = sorted[index];
+                }
+            }
+            return Arrays.copyOf(sorted, distinct);
+        }
+
+    }
+
+    // Layout: header, postings of all terms, sorted mail offsets, sorted term dictionary, footer with both positions
+    private static class Segment implements Closeable {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final long docsPosition;
+        private final String[] terms;
+        private final long[] positions;
+        private final int[] counts;
+
+        Segment(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer header = read(0, HEADER_SIZE);
+                if (size < HEADER_SIZE + FOOTER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException(String.format("Unknown search segment format: %s", file));
+                }
+                ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+                this.docsPosition = footer.getLong();
+                long dictionaryPosition = footer.getLong();
+                try (DataInputStream input = open(dictionaryPosition)) {
+                    int termCount = input.readInt();
+                    this.terms = new String[termCount];
+                    this.positions = new long[termCount];
+                    this.counts = new int[termCount];
+                    for (int index = 0; index < termCount; index++) {
+                        terms[index] = input.readUTF();
+                        positions[index] = input.readLong();
+                        counts[index] = input.readInt();
+                    }
+                }
+            } catch (IOException | RuntimeException exception) {
+                channel.close();
+                throw exception;
+            }
+        }
+
+        static void write(Path file, long[] docs, SortedSet<String> terms, TermPostings termPostings) throws IOException {
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024));
+            try (DataOutputStream output = new DataOutputStream(counter)) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                List<String> writtenTerms = new ArrayList<>(terms.size());
+                long[] positions = new long[terms.size()];
+                int[] counts = new int[terms.size()];
+                for (String term : terms) {
+                    long[] values = termPostings.get(term);
+                    if (values.length == 0) {
+                        continue;
+                    }
+                    positions[writtenTerms.size()] = counter.getByteCount();
+                    counts[writtenTerms.size()] = values.length;
+                    writtenTerms.add(term);
+                    writeDeltas(output, values);
+                }
+                long docsPosition = counter.getByteCount();
+                output.writeInt(docs.length);
+                writeDeltas(output, docs);
+                long dictionaryPosition = counter.getByteCount();
+                output.writeInt(writtenTerms.size());
+                for (int index = 0; index < writtenTerms.size(); index++) {
+                    output.writeUTF(writtenTerms.get(index));
+                    output.writeLong(positions[index]);
+                    output.writeInt(counts[index]);
+                }
+                output.writeLong(docsPosition);
+                output.writeLong(dictionaryPosition);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        List<String> getTerms() {
+            return Arrays.asList(terms);
+        }
+
+        long[] readDocs() throws IOException {
+            try (DataInputStream input = open(docsPosition)) {
+                return readDeltas(input, input.readInt());
+            }
+        }
+
+        void collect(String term, boolean prefix, Postings target) throws IOException {
+            int index = Arrays.binarySearch(terms, term);
+            if (!prefix) {
+                if (index >= 0) {
+                    target.addAll(readPostings(index));
+                }
+                return;
+            }
+            for (int current = index >= 0 ? index : -index - 1; current < terms.length && terms[current].startsWith(term); current++) {
+                target.addAll(readPostings(current));
+            }
+        }
+
+        private long[] readPostings(int index) throws IOException {
+            try (DataInputStream input = open(positions[index])) {
+                return readDeltas(input, counts[index]);
+            }
+        }
+
+        private DataInputStream open(long position) throws IOException {
+            // The stream must not close the shared channel
+            InputStream channelInput = Channels.newInputStream(channel.position(position));
+            return new DataInputStream(new BufferedInputStream(new FilterInputStream(channelInput) {
+                @Override
+                public void close() {
+                }
+            }));
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            long current = position;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, current);
+                if (read < 0) {
+                    throw new EOFException(String.format("Unexpected end of %s", file));
+                }
+                current += read;
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static void writeDeltas(DataOutput output, long[] values) throws IOException {
+            long previous = 0;
+            for (long value : values) {
+                long delta = value - previous;
+                previous = value;
+                while ((delta & ~0x7FL) != 0) {
+                    output.writeByte((int) ((delta & 0x7F) | 0x80));
+                    delta >>>= 7;
+                }
+                output.writeByte((int) delta);
+            }
+        }
+
+        private static long[] readDeltas(DataInput input, int count) throws IOException {
+            long[] values = new long[count];
+            long previous = 0;
+            for (int index = 0; index < count; index++) {
+                long delta = 0;
+                int shift = 0;
+                int current;
+                do {
+                    current = input.readUnsignedByte();
+                    delta |= (long) (current & 0x7F) << shift;
+                    shift += 7;
+                } while ((current & 0x80) != 0);
+                previous += delta;
+                values[index] = previous;
+            }
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    private interface TermPostings {
+
+        long[] get(String term) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,156 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+class Stage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Stage.class);
+
+    private final String name;
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    private final Semaphore running;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    Stage(String name, int threads, int queueCapacity) {
+        this(name, threads, queueCapacity, false);
+    }
+
+    Stage(String name, int threads, int queueCapacity, boolean virtualThreads) {
+        int poolSize = Math.max(1, threads);
+        this.name = name;
+        // Virtual threads start one thread per task, the running semaphore takes over the job of the pool size
+        ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor(name).orElse(null) : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.running = new Semaphore(poolSize, true);
+        } else {
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory(name));
+            this.running = null;
+        }
+        // Running tasks hold a permit as well, so producers block once the queue is full
+        this.capacity = new Semaphore(poolSize + Math.max(0, queueCapacity));
+    }
+
+    CompletableFuture<Void> submit(Runnable task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            capacity.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(exception);
+            return future;
+        }
+        blockedNanos.add(System.nanoTime() - start);
+
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        try {
+            executor.execute(() -> run(task, future));
+        } catch (RejectedExecutionException exception) {
+            queueDepth.decrementAndGet();
+            capacity.release();
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    // With virtual threads every task gets its thread at once and parks on the running semaphore, the parked tasks are
+    // the queue of this stage. Taking the permit in submit instead would leave no queue and block the producers.
+    private void run(Runnable task, CompletableFuture<Void> future) {
+        try {
+            if (running != null) {
+                running.acquire();
+            }
+        } catch (InterruptedException exception) {
+            queueDepth.decrementAndGet();
+            capacity.release();
+            future.completeExceptionally(exception);
+            return;
+        }
+        queueDepth.decrementAndGet();
+        activeCount.incrementAndGet();
+        try {
+            task.run();
+            future.complete(null);
+        } catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+        } finally {
+            activeCount.decrementAndGet();
+            completedCount.increment();
+            if (running != null) {
+                running.release();
+            }
+            capacity.release();
+        }
+    }
+
+    boolean isVirtual() {
+        return running != null;
+    }
+
+    // Tasks that were submitted but do not run yet, either in the pool queue or parked on a virtual thread
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    int getActiveCount() {
+        return activeCount.get();
+    }
+
+    long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for {} stage, {} tasks left", name, getQueueDepth() + getActiveCount());
+            }
+        } catch (InterruptedException exception) {
+            LOGGER.warn("Interrupted while waiting for {} stage, {} tasks dropped", name, executor.shutdownNow().size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s stage%s: queued=%d (max %d), active=%d, completed=%d, producers blocked=%d ms",
+                name, isVirtual() ? " (virtual threads)" : "", getQueueDepth(), getMaxQueueDepth(), getActiveCount(), getCompletedCount(), getBlockedMillis());
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+    }
+
+}
@@ -0,0 +1,223 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+class StorePool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorePool.class);
+
+    private final Session session;
+    private final String username;
+    private final String password;
+    private final int maxConnections;
+    private final String host;
+    private final ConnectionLimiter connectionLimiter;
+    private final BlockingQueue<Store> idleStores = new LinkedBlockingQueue<>();
+    private final List<Store> stores = new ArrayList<>();
+    // Stores closed while idle gave their permit back, they wait for one again when they reconnect
+    private final Set<Store> withoutPermit = new HashSet<>();
+    private final Set<Store> reserved = new HashSet<>();
+
+    private int opening = 0;
+    private boolean closed = false;
+
+    StorePool(Session session, String username, String password, int maxConnections, ConnectionLimiter connectionLimiter) {
+        this.session = session;
+        this.username = username;
+        this.password = password;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.host = session.getProperty("mail.imap.host");
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    Store acquire() throws MessagingException, InterruptedException {
+        Store store = idleStores.poll();
+        if (store == null) {
+            store = createStore(true);
+        }
+        if (store == null) {
+            store = idleStores.take();
+        }
+        if (!store.isConnected()) {
+            try {
+                reconnect(store);
+            } catch (MessagingException | InterruptedException | RuntimeException exception) {
+                // The store still counts against the pool size, without it the pool would run dry
+                idleStores.add(store);
+                throw exception;
+            }
+        }
+        return store;
+    }
+
+    // Connections held for a long time, like the one watching a folder with IDLE, are only handed out while another
+    // connection is left for reading. Otherwise readers would wait for a free connection forever, so nothing waits here
+    Optional<Store> tryReserve() throws MessagingException, InterruptedException {
+        Store store;
+        synchronized (this) {
+            if (closed || stores.size() - reserved.size() < 1) {
+                return Optional.empty();
+            }
+            store = stores.size() - reserved.size() >= 2 ? idleStores.poll() : null;
+            if (store != null) {
+                reserved.add(store);
+            }
+        }
+        if (store == null) {
+            store = createStore(false);
+            if (store == null) {
+                return Optional.empty();
+            }
+            synchronized (this) {
+                reserved.add(store);
+            }
+        }
+        if (!store.isConnected()) {
+            try {
+                reconnect(store);
+            } catch (MessagingException | InterruptedException | RuntimeException exception) {
+                releaseReserved(store);
+                throw exception;
+            }
+        }
+        return Optional.of(store);
+    }
+
+    void releaseReserved(Store store) {
+        if (store != null) {
+            synchronized (this) {
+                reserved.remove(store);
+            }
+            idleStores.add(store);
+        }
+    }
+
+    void release(Store store) {
+        if (store != null) {
+            idleStores.add(store);
+        }
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    // Idle connections count against the connection limit of the provider, they log in again once they are needed.
+    // Their permits are given back as well, so other accounts on the same host can connect while this one backs off
+    void closeIdle() {
+        List<Store> idle = new ArrayList<>();
+        idleStores.drainTo(idle);
+        for (Store store : idle) {
+            try {
+                store.close();
+            } catch (MessagingException exception) {
+                LOGGER.debug("Could not close idle connection: {}", exception.getMessage());
+            }
+            boolean released;
+            synchronized (this) {
+                released = stores.contains(store) && withoutPermit.add(store);
+            }
+            if (released) {
+                connectionLimiter.release(host);
+            }
+        }
+        idleStores.addAll(idle);
+    }
+
+    void close() {
+        List<Store> closing;
+        int permits;
+        synchronized (this) {
+            closed = true;
+            closing = new ArrayList<>(stores);
+            permits = stores.size() - withoutPermit.size();
+            stores.clear();
+            withoutPermit.clear();
+            reserved.clear();
+        }
+        for (Store store : closing) {
+            try {
+                store.close();
+            } catch (MessagingException exception) {
+                LOGGER.warn("Could not close connection: {}", exception.getMessage());
+            }
+        }
+        for (int permit = 0; permit < permits; permit++) {
+            connectionLimiter.release(host);
+        }
+        idleStores.clear();
+    }
+
+    private void reconnect(Store store) throws MessagingException, InterruptedException {
+        boolean needsPermit;
+        synchronized (this) {
+            needsPermit = withoutPermit.contains(store);
+        }
+        if (needsPermit) {
+            connectionLimiter.acquire(host);
+            synchronized (this) {
+                withoutPermit.remove(store);
+            }
+        }
+        LOGGER.info("Reconnecting as user {}", username);
+        store.connect(username, password);
+    }
+
+    // Only the pool size is checked under the lock, waiting for a permit or the server must not block close()
+    private Store createStore(boolean mayWait) throws MessagingException, InterruptedException {
+        boolean first;
+        int number;
+        synchronized (this) {
+            if (closed) {
+                throw new MessagingException("Connection pool is closed");
+            }
+            if (stores.size() + opening >= maxConnections) {
+                return null;
+            }
+            first = stores.isEmpty();
+            number = stores.size() + ++opening;
+        }
+        boolean permitted = false;
+        try {
+            // The first connection waits for the shared limit, further ones are only opened if a permit is free
+            if (first && mayWait) {
+                connectionLimiter.acquire(host);
+            } else if (!connectionLimiter.tryAcquire(host)) {
+                return null;
+            }
+            permitted = true;
+            Store store = session.getStore("imap");
+            LOGGER.info("Connecting as user {} ({}/{})", username, number, maxConnections);
+            store.connect(username, password);
+            synchronized (this) {
+                if (!closed) {
+                    stores.add(store);
+                    permitted = false;
+                    return store;
+                }
+            }
+            store.close();
+            throw new MessagingException("Connection pool is closed");
+        } finally {
+            if (permitted) {
+                connectionLimiter.release(host);
+            }
+            synchronized (this) {
+                opening--;
+            }
+        }
+    }
+
+}
@@ -31,10 +31,11 @@ public class Utility {
     private Utility() {
     }
 
-    public static Optional<Object> getContent(Message message) {
+    public static Optional<Object> getContent(Message message) throws MessagingException {
         try {
             return Optional.ofNullable(message.getContent());
         } catch (MessagingException | IOException exception) {
+            throwIfConnectionLost(exception);
             String msg = exception.toString();
             LOGGER.warn("Could not read content: {}", msg);
         }
@@ -42,10 +43,11 @@ public class Utility {
         return Optional.empty();
     }
 
-    public static Optional<Object> getContent(Part part) {
+    public static Optional<Object> getContent(Part part) throws MessagingException {
         try {
             return Optional.ofNullable(part.getContent());
         } catch (MessagingException | IOException exception) {
+            throwIfConnectionLost(exception);
             String msg = exception.toString();
             LOGGER.warn("Could not read content of part: {}", msg);
         }
@@ -53,10 +55,18 @@ public class Utility {
         return Optional.empty();
     }
 
-    public static int getCount(MimeMultipart mimeMultipart) {
+    // A mail read over a lost connection would be stored incomplete, the folder reader resumes it instead
+    static void throwIfConnectionLost(Exception exception) throws MessagingException {
+        if (AdaptiveThrottle.isRetryable(exception)) {
+            throw exception instanceof MessagingException ? (MessagingException) exception : new MessagingException(exception.getMessage(), exception);
+        }
+    }
+
+    public static int getCount(MimeMultipart mimeMultipart) throws MessagingException {
         try {
             return mimeMultipart.getCount();
         } catch (MessagingException exception) {
+            throwIfConnectionLost(exception);
             String msg = exception.toString();
             LOGGER.warn("Could not determinate amount of parts: {}", msg);
         }
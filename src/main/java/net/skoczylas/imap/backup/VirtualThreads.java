@@ -0,0 +1,52 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final boolean AVAILABLE = lookupBuilder().isPresent();
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    // The build targets Java 11, so the virtual thread API of newer runtimes is only reached through reflection
+    static Optional<ExecutorService> newExecutor(String name) {
+        try {
+            Optional<Object> builder = lookupBuilder();
+            if (builder.isEmpty()) {
+                return Optional.empty();
+            }
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder.get(), name + "-", 1L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return Optional.of((ExecutorService) newExecutor.invoke(null, threadFactory));
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            LOGGER.warn("Could not create virtual threads for {}: {}", name, exception.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<Object> lookupBuilder() {
+        try {
+            return Optional.ofNullable(Thread.class.getMethod("ofVirtual").invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            // Older runtime or preview features disabled
+            return Optional.empty();
+        }
+    }
+
+}
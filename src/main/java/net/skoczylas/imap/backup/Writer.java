@@ -3,19 +3,30 @@ package net.skoczylas.imap.backup;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 class Writer {
 
@@ -23,158 +34,599 @@ class Writer {
 
     private static final DateTimeFormatter YEAR_FORMATTER = DateTimeFormatter.ofPattern("yyyy");
     private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("MM_dd");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String OVERVIEW_FILE = "mail_index.html";
+    private static final String INFO_FILE = "mail_info.txt";
+    private static final int SYNC_BATCH_SIZE = 100;
 
-    private final List<MailInfo> mailQueue;
+    private final MailLog mailQueue = new MailLog();
+    private final MailIndex mailIndex;
+    private final ProgressJournal progressJournal;
+    private final MailManifest mailManifest;
     private final String targetFolder;
     private final String backupFolder;
     private final String account;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(20);
-    private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(10);
+    private final Stage writeStage;
+    private final Metrics metrics;
+    private final BlobStore blobStore;
+    private final ArchiveStore archiveStore;
+    private final RawExporter rawExporter;
+    private final SearchIndex searchIndex;
+    private final Durability durability;
+    private final List<Path> unsyncedFiles = new ArrayList<>();
+    private final List<MailInfo> unsyncedMails = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final OverviewIndex overviewIndex = new OverviewIndex();
+    // Template data model reused by each writer thread instead of a new map per mail
+    private final ThreadLocal<Map<String, String>> mailInfoModel = ThreadLocal.withInitial(HashMap::new);
 
     private final Template overviewTemplate;
+    private final Template indexTemplate;
     private final Template mailInfoTemplate;
 
-    public Writer(List<MailInfo> mailQueue, String targetFolder, String backupFolder, String account, String template) throws IOException {
-        this.mailQueue = mailQueue;
-        this.targetFolder = targetFolder;
+    private boolean overviewWritten = false;
+    private ScheduledFuture<?> overviewTask;
+
+    public Writer(BackupSettings settings, String backupFolder, String account, Metrics metrics, WriterPool writerPool) throws IOException {
+        this.targetFolder = settings.getOutput();
         this.backupFolder = backupFolder;
         this.account = normalize(account);
+        Files.createDirectories(getAccountPath());
+        this.mailIndex = new MailIndex(getAccountPath(), mailQueue::append);
+        this.durability = Durability.of(settings.getDurability());
+        this.progressJournal = new ProgressJournal(getAccountPath(), durability);
+        this.writeStage = writerPool.getWriteStage();
+        this.scheduler = writerPool.getScheduler();
+        this.metrics = metrics;
+        metrics.watchWriterQueue(writeStage::getQueueDepth);
+        this.blobStore = settings.isDeduplicate() && !settings.isArchive() ? new BlobStore(Paths.get(targetFolder, backupFolder, "blobs")) : null;
+        this.archiveStore = settings.isArchive() ? new ArchiveStore(getAccountPath(), durability != Durability.NONE) : null;
+        this.mailManifest = settings.isArchive() ? null : new MailManifest(getAccountPath());
+        this.rawExporter = settings.getRawFormat() != null ? new RawExporter(getAccountPath(), settings.getRawFormat()) : null;
+        this.searchIndex = settings.isSearchIndex() ? new SearchIndex(getAccountPath(), writeStage) : null;
+        if (searchIndex != null) {
+            indexMissingMails();
+        }
         Configuration configuration = new Configuration(Configuration.VERSION_2_3_31);
         configuration.setClassForTemplateLoading(getClass(), "/");
 
-        if ("grid".equalsIgnoreCase(template)) {
+        if ("grid".equalsIgnoreCase(settings.getTemplate())) {
             overviewTemplate = configuration.getTemplate("overview-grid.ftlh");
         } else {
             overviewTemplate = configuration.getTemplate("overview-table.ftlh");
         }
+        indexTemplate = configuration.getTemplate("overview-index.ftlh");
         mailInfoTemplate = configuration.getTemplate("mail-info.ftlh");
     }
 
     void run() {
         LOGGER.info("Overview writer started...");
-        scheduledExecutorService.scheduleWithFixedDelay(this::writeOverview, 10, 10, TimeUnit.SECONDS);
+        overviewTask = scheduler.scheduleWithFixedDelay(this::writeOverview, 10, 10, TimeUnit.SECONDS);
     }
 
+    // The write stage may be shared with other accounts, all writes of this one are joined per folder before it is stopped
     void stop() {
-        scheduledExecutorService.shutdown();
-        executorService.shutdown();
+        if (overviewTask != null) {
+            overviewTask.cancel(false);
+        }
+        sync();
+        writeOverview();
+        if (blobStore != null) {
+            LOGGER.info("{}", blobStore);
+        }
+        LOGGER.info("{} mails completely written", progressJournal.getCompletedCount());
+        try {
+            mailIndex.close();
+            progressJournal.close();
+            if (mailManifest != null) {
+                mailManifest.close();
+            }
+            if (archiveStore != null) {
+                archiveStore.close();
+            }
+            if (rawExporter != null) {
+                rawExporter.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not close mail index: {}", exception.getMessage());
+        }
     }
 
-    void writeToFile(InputStream content, MailInfo mailInfo, String fileName) {
-        Path path = getPath(mailInfo);
+    boolean isCompleted(String hash) {
+        return progressJournal.isCompleted(hash);
+    }
+
+    void startMessage(MailInfo mailInfo) {
         try {
-            Files.createDirectories(path);
-            Path file = Paths.get(path.toString(), normalize(fileName));
-            executorService.submit(() -> writeStream(mailInfo, content, file));
-        } catch (Exception exception) {
-            LOGGER.error("Could not write {}: {}", fileName, exception);
+            progressJournal.start(mailInfo.getHash(), getRelativePath(mailInfo));
+        } catch (IOException exception) {
+            LOGGER.error("Could not journal start of mail {}: {}", mailInfo.getNumber(), exception.getMessage());
         }
     }
 
-    void writeToFile(String content, MailInfo mailInfo, String fileName) {
-        Path path = getPath(mailInfo);
+    void completeMessage(MailInfo mailInfo) {
+        if (durability == Durability.BATCH) {
+            boolean full;
+            synchronized (unsyncedFiles) {
+                unsyncedMails.add(mailInfo);
+                full = unsyncedMails.size() >= SYNC_BATCH_SIZE;
+            }
+            if (full) {
+                sync();
+            }
+            return;
+        }
+        if (durability == Durability.MESSAGE) {
+            forceIndex();
+        }
+        journalCompletion(mailInfo);
+    }
+
+    // With batch durability a mail only counts as completed once its files are synced
+    void sync() {
+        List<Path> files;
+        List<MailInfo> mails;
+        synchronized (unsyncedFiles) {
+            files = new ArrayList<>(unsyncedFiles);
+            mails = new ArrayList<>(unsyncedMails);
+            unsyncedFiles.clear();
+            unsyncedMails.clear();
+        }
+        if (files.isEmpty() && mails.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        files.forEach(Writer::force);
+        if (archiveStore != null) {
+            forceArchive();
+        }
+        forceIndex();
+        mails.forEach(this::journalCompletion);
+        forceJournal();
+        LOGGER.debug("Synced {} files of {} mails in {} ms", files.size(), mails.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void forceArchive() {
         try {
-            Files.createDirectories(path);
-            Path file = Paths.get(path.toString(), normalize(fileName));
-            executorService.submit(() -> writeString(mailInfo, content, file));
-        } catch (Exception exception) {
-            LOGGER.error("Could not write {}: {}", fileName, exception);
+            archiveStore.force();
+        } catch (IOException exception) {
+            LOGGER.error("Could not sync archive segments: {}", exception.getMessage());
         }
     }
 
+    // The index records were appended before the writes finished, they are synced with the files of the mail
+    private void forceIndex() {
+        try {
+            mailIndex.force();
+        } catch (IOException exception) {
+            LOGGER.error("Could not sync mail index: {}", exception.getMessage());
+        }
+    }
+
+    // The completions of a batch are synced together, a mail only counts as written once its line is on disk
+    private void forceJournal() {
+        try {
+            progressJournal.force();
+        } catch (IOException exception) {
+            LOGGER.error("Could not sync progress journal: {}", exception.getMessage());
+        }
+    }
+
+    private void journalCompletion(MailInfo mailInfo) {
+        try {
+            progressJournal.complete(mailInfo.getHash());
+            if (mailManifest != null && !mailInfo.getWrittenFiles().isEmpty()) {
+                mailManifest.add(mailInfo.getHash(), mailInfo.getWrittenFiles());
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not journal completion of mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+        }
+    }
+
+    int getIndexedCount() {
+        return mailIndex.size();
+    }
+
+    void addToIndex(MailInfo mailInfo) {
+        try {
+            long offset = mailIndex.append(mailInfo);
+            if (offset >= 0) {
+                mailQueue.append(offset);
+            }
+            if (searchIndex != null) {
+                if (offset >= 0) {
+                    searchIndex.add(offset, mailInfo);
+                } else {
+                    searchIndex.discard(mailInfo);
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not add mail {} to index: {}", mailInfo.getNumber(), exception.getMessage());
+        }
+    }
+
+    // Body text collected for a mail that failed before it was added to the index
+    void discardText(MailInfo mailInfo) {
+        if (searchIndex != null) {
+            searchIndex.discard(mailInfo);
+        }
+    }
+
+    void indexText(MailInfo mailInfo, String text, boolean html) {
+        if (searchIndex != null) {
+            searchIndex.addText(mailInfo, text, html);
+        }
+    }
+
+    // Mails of runs without the search index, or lost by a crash before a segment was written, are indexed without body text
+    private void indexMissingMails() throws IOException {
+        LongSet indexed = searchIndex.getIndexedDocs();
+        int count = 0;
+        for (long offset : mailQueue.snapshot(0)) {
+            if (!indexed.contains(offset)) {
+                searchIndex.add(offset, mailIndex.read(offset));
+                count++;
+            }
+        }
+        if (count > 0) {
+            LOGGER.info("Added {} mails of earlier runs to the search index", count);
+        }
+    }
+
+    Stage getWriteStage() {
+        return writeStage;
+    }
+
+    boolean isRawExport() {
+        return rawExporter != null;
+    }
+
+    boolean isExported(String hash) {
+        return rawExporter != null && rawExporter.isExported(hash);
+    }
+
+    void writeRaw(Message message, MailInfo mailInfo) {
+        mailInfo.addWrite(writeStage.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                metrics.written(rawExporter.export(mailInfo, message), start);
+                rawExporter.exported(mailInfo.getHash());
+            } catch (IOException exception) {
+                LOGGER.error("Could not export mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+                metrics.error(exception);
+                throw new UncheckedIOException(exception);
+            } catch (MessagingException exception) {
+                LOGGER.error("Could not export mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+                metrics.error(exception);
+                throw new IllegalStateException(exception);
+            }
+        }));
+    }
+
+    void writeToFile(InputStream content, MailInfo mailInfo, String fileName) {
+        mailInfo.getMessageWrite().addFile(fileName, content);
+    }
+
+    void writeToFile(String content, MailInfo mailInfo, String fileName) {
+        mailInfo.getMessageWrite().addFile(fileName, content);
+    }
+
     void writeInfoFile(MailInfo mailInfo) {
-        Path path = getPath(mailInfo);
+        mailInfo.getMessageWrite().addInfoFile();
+    }
+
+    // Submits everything collected for the mail as one task, so its files are written together and in order
+    void commitMessage(MailInfo mailInfo) {
+        MessageWrite messageWrite = mailInfo.takeMessageWrite();
+        if (messageWrite == null || messageWrite.isEmpty()) {
+            return;
+        }
+        if (archiveStore != null) {
+            mailInfo.addWrite(writeStage.submit(() -> writeArchive(mailInfo, messageWrite)));
+        } else {
+            mailInfo.addWrite(writeStage.submit(() -> writeMessage(mailInfo, messageWrite)));
+        }
+    }
+
+    private void writeArchive(MailInfo mailInfo, MessageWrite messageWrite) {
+        for (MessageWrite.File file : messageWrite.getFiles()) {
+            writeArchive(mailInfo, file.getFileName(), file.getStream());
+        }
+        if (messageWrite.hasInfoFile()) {
+            getMailInfoFromTemplate(mailInfo).ifPresent(content -> writeArchive(mailInfo, INFO_FILE, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))));
+        }
+        if (durability == Durability.MESSAGE) {
+            try {
+                archiveStore.force(mailInfo);
+            } catch (IOException exception) {
+                LOGGER.error("Could not sync archive of mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+                metrics.error(exception);
+                throw new UncheckedIOException(exception);
+            }
+        }
+    }
+
+    // Files go to a hidden staging folder that is renamed once complete, so a mail folder never holds a partial mail
+    private void writeMessage(MailInfo mailInfo, MessageWrite messageWrite) {
+        Path target = getPath(mailInfo);
+        Path folder = null;
+        boolean staged = false;
         try {
-            Files.createDirectories(path);
-            Path infoFile = Paths.get(path.toString(), "mail_info.txt");
-            getMailInfoFromTemplate(mailInfo).ifPresent(content -> executorService.submit(() -> writeString(mailInfo, content, infoFile)));
-        } catch (Exception exception) {
-            LOGGER.error("Could not write mail information {}: {}", mailInfo.getNumber(), exception);
+            Files.createDirectories(target.getParent());
+            // A folder left by an older run is completed in place
+            staged = !Files.exists(target);
+            folder = staged ? Files.createTempDirectory(target.getParent(), "." + target.getFileName() + ".") : target;
+            List<String> fileNames = new ArrayList<>();
+            List<MailManifest.Entry> writtenFiles = new ArrayList<>();
+            for (MessageWrite.File file : messageWrite.getFiles()) {
+                String fileName = normalize(file.getFileName());
+                Path path = folder.resolve(fileName);
+                if (file.isText()) {
+                    writtenFiles.add(getManifestEntry(writeString(mailInfo, file.getText(), path), path));
+                } else {
+                    writtenFiles.add(getManifestEntry(writeStream(mailInfo, file.getStream(), path), path));
+                }
+                fileNames.add(fileName);
+            }
+            if (messageWrite.hasInfoFile()) {
+                // Rendered straight into the file, the text is never held as a whole
+                Path path = folder.resolve(INFO_FILE);
+                writtenFiles.add(getManifestEntry(writeMailInfo(mailInfo, path), path));
+                fileNames.add(INFO_FILE);
+            }
+            mailInfo.setWrittenFiles(writtenFiles);
+            if (durability == Durability.MESSAGE) {
+                for (String fileName : fileNames) {
+                    force(folder.resolve(fileName));
+                }
+            }
+            if (staged) {
+                moveFolderIntoPlace(folder, target);
+                folder = target;
+            }
+            if (durability == Durability.MESSAGE) {
+                force(target);
+                force(target.getParent());
+            } else if (durability == Durability.BATCH) {
+                synchronized (unsyncedFiles) {
+                    fileNames.forEach(fileName -> unsyncedFiles.add(target.resolve(fileName)));
+                    unsyncedFiles.add(target);
+                    unsyncedFiles.add(target.getParent());
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Could not write mail {}: {}", mailInfo.getNumber(), exception.getMessage());
+            metrics.error(exception);
+            throw new UncheckedIOException(exception);
+        } finally {
+            if (staged && folder != null && !folder.equals(target)) {
+                deleteFolderQuietly(folder);
+            }
+        }
+    }
+
+    // Checksums are taken while writing, only files left by an older run are read again
+    private static MailManifest.Entry getManifestEntry(Optional<MailManifest.Entry> written, Path file) throws IOException {
+        return written.isPresent() ? written.get() : MailManifest.checksum(file);
+    }
+
+    private void moveFolderIntoPlace(Path folder, Path target) throws IOException {
+        try {
+            Files.move(folder, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException exception) {
+            // Another mail with the same hash was written at the same time, its folder is kept
+            LOGGER.debug("Mail folder {} already exists", target);
+            deleteFolderQuietly(folder);
+        }
+    }
+
+    private void deleteFolderQuietly(Path folder) {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(this::deleteQuietly);
+        } catch (IOException exception) {
+            LOGGER.warn("Could not delete staging folder {}: {}", folder, exception.getMessage());
+        }
+    }
+
+    private static void force(Path path) {
+        // Directories can not be opened for syncing on every platform
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException exception) {
+            LOGGER.debug("Could not sync {}: {}", path, exception.getMessage());
         }
     }
 
+    Path getAccountPath() {
+        return Paths.get(targetFolder, backupFolder, account);
+    }
+
     private synchronized void writeOverview() {
         LOGGER.trace("Updating overview for {}", account);
+        LOGGER.debug("{}", writeStage);
         try {
-            Path path = Paths.get(targetFolder, backupFolder, account);
-            Files.createDirectories(path);
-            Path overviewFile = Paths.get(path.toString(), "mail_index.html");
-            getOverFromTemplate().ifPresent(content -> writeString(null, content, overviewFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            for (long offset : mailQueue.snapshot(overviewIndex.getCount())) {
+                overviewIndex.add(offset, mailIndex.read(offset));
+            }
+
+            // Only folders and years which received mails since the last update are rendered again
+            Path accountPath = getAccountPath();
+            List<OverviewIndex.Partition> partitions = overviewIndex.takeDirtyPartitions();
+            for (OverviewIndex.Partition partition : partitions) {
+                Path partitionPath = getPartitionPath(accountPath, partition);
+                Files.createDirectories(partitionPath);
+                Path overviewFile = partitionPath.resolve(OVERVIEW_FILE);
+                Path index = partitionPath.relativize(accountPath.resolve(OVERVIEW_FILE));
+                getPartitionFromTemplate(partition, index).ifPresent(content -> writeString(null, content, overviewFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            }
+
+            if (!partitions.isEmpty() || !overviewWritten) {
+                Files.createDirectories(accountPath);
+                Path overviewFile = accountPath.resolve(OVERVIEW_FILE);
+                getIndexFromTemplate().ifPresent(content -> writeString(null, content, overviewFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+                overviewWritten = true;
+            }
         } catch (Exception exception) {
             LOGGER.error("Could not write mail overview for {}: {}", account, exception);
         }
     }
 
+    private Path getPartitionPath(Path accountPath, OverviewIndex.Partition partition) {
+        List<String> folder = new ArrayList<>(partition.getFolder());
+        folder.add(partition.getYear());
+        return Paths.get(accountPath.toString(), folder.toArray(new String[0]));
+    }
+
     private Path getPath(MailInfo mailInfo) {
-        return Paths.get(targetFolder, getPaths(mailInfo, true));
+        return getAccountPath().resolve(getRelativePath(mailInfo));
     }
 
     private Path getRelativePath(MailInfo mailInfo) {
-        return Paths.get("", getPaths(mailInfo, false));
+        Path relativePath = mailInfo.getRelativePath();
+        if (relativePath == null) {
+            relativePath = getMailPath(mailInfo.getFolder(), mailInfo.getReceivedAt(), mailInfo.getHash());
+            mailInfo.setRelativePath(relativePath);
+        }
+        return relativePath;
     }
 
-    private String normalize(String value) {
+    static String normalize(String value) {
         return value
                 .replaceAll("[^\\sa-zA-Z0-9_.ÄÖÜäöüß+-]", "_")
                 .replaceAll("(\\r|\\n|\\t)", "");
     }
 
-    private String[] getPaths(MailInfo mailInfo, boolean root) {
-        LocalDateTime receivedDate = mailInfo.getReceivedAt();
-        String hash = mailInfo.getHash();
+    // Folder of a mail relative to the account, also used to find mails again when verifying a backup
+    static Path getMailPath(Deque<String> mailFolder, LocalDateTime receivedDate, String hash) {
         String yearFolder = YEAR_FORMATTER.format(receivedDate);
         String monthDayFolder = MONTH_FORMATTER.format(receivedDate);
-        List<String> folder = new ArrayList<>();
-        if (root) {
-            folder.add(backupFolder);
-            folder.add(account);
-        }
-        folder.addAll(mailInfo.getFolder());
+        List<String> folder = new ArrayList<>(mailFolder);
         folder.add(yearFolder);
         folder.add(monthDayFolder);
         folder.add(hash);
-        return folder.toArray(new String[0]);
+        return Paths.get("", folder.toArray(new String[0]));
     }
 
-    private void writeStream(MailInfo mailInfo, InputStream inputStream, Path file) {
+    private Optional<MailManifest.Entry> writeStream(MailInfo mailInfo, InputStream inputStream, Path file) {
         if (!Files.exists(file)) {
-            File targetFile = file.toFile();
-            try (OutputStream outStream = new FileOutputStream(targetFile)) {
-                byte[] buffer = inputStream.readAllBytes();
-                outStream.write(buffer);
-                outStream.flush();
+            Path tempFile = null;
+            long start = System.nanoTime();
+            try (InputStream input = inputStream) {
+                // Partial downloads stay in a hidden temporary file and never show up under the final name
+                tempFile = Files.createTempFile(blobStore != null ? blobStore.getTempFolder() : file.getParent(), ".", ".part");
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                CRC32C checksum = new CRC32C();
+                long bytes;
+                try (OutputStream outStream = Files.newOutputStream(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    bytes = copy(input, new CheckedOutputStream(blobStore != null ? new DigestOutputStream(outStream, digest) : outStream, checksum));
+                }
+                if (blobStore != null) {
+                    Path blob = blobStore.add(tempFile, Hex.encodeHexString(digest.digest()));
+                    tempFile = null;
+                    blobStore.link(blob, file);
+                } else {
+                    moveIntoPlace(tempFile, file);
+                }
+                metrics.written(bytes, start);
                 LOGGER.trace("File written for Mail {}: {}", mailInfo.getNumber(), file.getFileName());
+                return Optional.of(new MailManifest.Entry(file.getFileName().toString(), bytes, checksum.getValue()));
             } catch (IOException exception) {
                 LOGGER.error("Could not write stream to file {}: {}", file.getFileName(), exception);
+                metrics.error(exception);
+                deleteQuietly(tempFile);
+                throw new UncheckedIOException(exception);
             }
         } else {
             LOGGER.error("Could not write stream because file {}  already exists!", file.getFileName());
+            return Optional.empty();
+        }
+    }
+
+    private void writeArchive(MailInfo mailInfo, String fileName, InputStream inputStream) {
+        long start = System.nanoTime();
+        try {
+            long bytes = archiveStore.append(mailInfo, normalize(fileName), inputStream);
+            metrics.written(bytes, start);
+            LOGGER.trace("Archived file for Mail {}: {}", mailInfo.getNumber(), fileName);
+        } catch (IOException exception) {
+            LOGGER.error("Could not archive file {}: {}", fileName, exception.getMessage());
+            metrics.error(exception);
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    private void moveIntoPlace(Path tempFile, Path file) throws IOException {
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(tempFile, file);
         }
     }
 
-    private void writeString(MailInfo mailInfo, String content, Path file) {
-        writeString(mailInfo, content, file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    private void deleteQuietly(Path file) {
+        try {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException exception) {
+            LOGGER.warn("Could not delete temporary file {}: {}", file, exception.getMessage());
+        }
+    }
+
+    private Optional<MailManifest.Entry> writeString(MailInfo mailInfo, String content, Path file) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (writeBytes(mailInfo, bytes, file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            return Optional.of(MailManifest.checksum(file.getFileName().toString(), bytes));
+        }
+        return Optional.empty();
     }
 
     private void writeString(MailInfo mailInfo, String content, Path file, StandardOpenOption... options) {
+        writeBytes(mailInfo, content.getBytes(StandardCharsets.UTF_8), file, options);
+    }
+
+    private boolean writeBytes(MailInfo mailInfo, byte[] content, Path file, StandardOpenOption... options) {
+        long start = System.nanoTime();
         try {
-            Files.writeString(file, content, options);
+            Files.write(file, content, options);
+            metrics.written(content.length, start);
             if (mailInfo != null) {
                 LOGGER.trace("File written for Mail {}: {}", mailInfo.getNumber(), file.getFileName());
             }
+            return true;
         } catch (FileAlreadyExistsException exception) {
             // Nothing to do, was expected
             LOGGER.debug("File already exists {}: {}", file.getFileName(), exception);
-        } catch (IOException | IllegalArgumentException | UnsupportedOperationException | SecurityException exception) {
+            return false;
+        } catch (IOException exception) {
+            LOGGER.error("Could not write content file {}: {}", file.getFileName(), exception);
+            metrics.error(exception);
+            throw new UncheckedIOException(exception);
+        } catch (IllegalArgumentException | UnsupportedOperationException | SecurityException exception) {
             LOGGER.error("Could not write content file {}: {}", file.getFileName(), exception);
+            metrics.error(exception);
+            throw exception;
         }
     }
 
-    private Optional<String> getMailInfoFromTemplate(MailInfo mailInfo) {
+    Optional<String> getMailInfoFromTemplate(MailInfo mailInfo) {
         try {
-            Map<String, String> root = toMap(mailInfo);
             StringWriter stringWriter = new StringWriter();
-            mailInfoTemplate.process(root, stringWriter);
+            renderMailInfo(mailInfo, stringWriter);
             return Optional.of(stringWriter.toString());
         } catch (IOException | TemplateException exception) {
             LOGGER.error("Could generate mail info from template", exception);
@@ -183,15 +635,63 @@ class Writer {
         return Optional.empty();
     }
 
-    private synchronized Optional<String> getOverFromTemplate() {
+    void renderMailInfo(MailInfo mailInfo, java.io.Writer output) throws IOException, TemplateException {
+        Map<String, String> root = mailInfoModel.get();
+        try {
+            fillModel(root, mailInfo);
+            mailInfoTemplate.process(root, output);
+        } finally {
+            root.clear();
+        }
+    }
+
+    private Optional<MailManifest.Entry> writeMailInfo(MailInfo mailInfo, Path file) {
+        long start = System.nanoTime();
+        CRC32C checksum = new CRC32C();
+        try (CountingOutputStream output = new CountingOutputStream(new CheckedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), checksum));
+             java.io.Writer fileWriter = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            renderMailInfo(mailInfo, fileWriter);
+            fileWriter.flush();
+            metrics.written(output.getByteCount(), start);
+            LOGGER.trace("File written for Mail {}: {}", mailInfo.getNumber(), file.getFileName());
+            return Optional.of(new MailManifest.Entry(file.getFileName().toString(), output.getByteCount(), checksum.getValue()));
+        } catch (FileAlreadyExistsException exception) {
+            // Nothing to do, was expected
+            LOGGER.debug("File already exists {}: {}", file.getFileName(), exception);
+            return Optional.empty();
+        } catch (IOException exception) {
+            LOGGER.error("Could not write mail information {}: {}", file.getFileName(), exception);
+            metrics.error(exception);
+            throw new UncheckedIOException(exception);
+        } catch (TemplateException exception) {
+            LOGGER.error("Could generate mail info from template", exception);
+            metrics.error(exception);
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private Optional<String> getPartitionFromTemplate(OverviewIndex.Partition partition, Path index) {
         try {
             Map<String, Object> root = new HashMap<>();
-            List<Map<String, String>> mails = mailQueue.stream()
-                    .map(this::toMap)
-                    .collect(Collectors.toList());
+            List<Map<String, String>> mails = new ArrayList<>();
+            for (long offset : partition.getOffsets()) {
+                MailInfo mailInfo = mailIndex.read(offset);
+                Map<String, String> mail = toMap(mailInfo);
+                if (archiveStore != null) {
+                    // Archived mails have no folder to link to, the overview names the segment and the hash to extract
+                    mail.remove("link");
+                    mail.put("segment", ArchiveStore.getSegmentName(mailInfo));
+                    mail.put("hash", mailInfo.getHash());
+                } else {
+                    mail.put("link", String.valueOf(Paths.get(MONTH_FORMATTER.format(mailInfo.getReceivedAt()), mailInfo.getHash())));
+                }
+                mails.add(mail);
+            }
 
-            root.put("count", mailQueue.size());
+            root.put("count", mails.size());
             root.put("mails", mails);
+            root.put("index", String.valueOf(index));
+            root.put("archive", archiveStore != null);
             StringWriter stringWriter = new StringWriter();
             overviewTemplate.process(root, stringWriter);
             return Optional.of(stringWriter.toString());
@@ -202,19 +702,51 @@ class Writer {
         return Optional.empty();
     }
 
+    private Optional<String> getIndexFromTemplate() {
+        try {
+            Map<String, Object> root = new HashMap<>();
+            List<Map<String, String>> partitions = new ArrayList<>();
+            for (OverviewIndex.Partition partition : overviewIndex.getPartitions()) {
+                Map<String, String> entry = new HashMap<>();
+                entry.put("folder", String.join("/", partition.getFolder()));
+                entry.put("year", partition.getYear());
+                entry.put("count", String.valueOf(partition.getSize()));
+                entry.put("link", String.valueOf(getPartitionPath(Paths.get(""), partition).resolve(OVERVIEW_FILE)));
+                partitions.add(entry);
+            }
+
+            root.put("count", overviewIndex.getCount());
+            root.put("partitions", partitions);
+            StringWriter stringWriter = new StringWriter();
+            indexTemplate.process(root, stringWriter);
+            return Optional.of(stringWriter.toString());
+        } catch (IOException | TemplateException exception) {
+            LOGGER.error("Could generate overview index from template", exception);
+        }
+
+        return Optional.empty();
+    }
+
     private Map<String, String> toMap(MailInfo mailInfo) {
         Map<String, String> root = new HashMap<>();
+        fillModel(root, mailInfo);
+        return root;
+    }
+
+    private void fillModel(Map<String, String> root, MailInfo mailInfo) {
         root.put("number", String.valueOf(mailInfo.getNumber()));
         root.put("subject", mailInfo.getSubject());
         root.put("date", Utility.getDate(mailInfo.getReceivedAt()));
-        root.put("from", mailInfo.getFrom().stream().map(MailAddress::toString).collect(Collectors.joining(", ")));
-        root.put("to", mailInfo.getTo().stream().map(MailAddress::toString).collect(Collectors.joining(", ")));
+        root.put("from", mailInfo.getFromList());
+        root.put("to", mailInfo.getToList());
         if (!mailInfo.getAttachments().isEmpty()) {
             root.put("attachments", String.join(", ", mailInfo.getAttachments()));
         }
-        root.put("folder", String.join("/", mailInfo.getFolder()));
+        if (!mailInfo.getSkippedParts().isEmpty()) {
+            root.put("skipped", String.join(", ", mailInfo.getSkippedParts()));
+        }
+        root.put("folder", mailInfo.getFolderPath());
         root.put("link", String.valueOf(getRelativePath(mailInfo)));
-        return root;
     }
 
 }
\ No newline at end of file
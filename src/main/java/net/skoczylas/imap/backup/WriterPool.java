@@ -0,0 +1,42 @@
+package net.skoczylas.imap.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class WriterPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriterPool.class);
+
+    private static final int SCHEDULER_THREADS = 2;
+
+    private final Stage writeStage;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS);
+
+    WriterPool(BackupSettings settings) {
+        this.writeStage = new Stage("writer", settings.getWriterThreads(), settings.getWriterQueueCapacity(), settings.isVirtualThreads());
+    }
+
+    Stage getWriteStage() {
+        return writeStage;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    void shutdown() {
+        scheduler.shutdown();
+        writeStage.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("{}", writeStage);
+    }
+
+}
@@ -0,0 +1,70 @@
+package net.skoczylas.imap.backup;
+
+import com.sun.mail.iap.ConnectionException;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.StoreClosedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveThrottleTest {
+
+    @Test
+    void retriesLostConnectionsAndThrottling() {
+        assertTrue(AdaptiveThrottle.isRetryable(new FolderClosedException(null)));
+        assertTrue(AdaptiveThrottle.isRetryable(new StoreClosedException(null)));
+        assertTrue(AdaptiveThrottle.isRetryable(new MessagingException("Fetch failed", new ConnectionException())));
+        assertTrue(AdaptiveThrottle.isRetryable(new MessagingException("Fetch failed", new SocketTimeoutException("Read timed out"))));
+        assertTrue(AdaptiveThrottle.isRetryable(new MessagingException("NO [LIMIT] Too many simultaneous connections")));
+    }
+
+    @Test
+    void failsFailedLoginsAndOtherErrors() {
+        assertFalse(AdaptiveThrottle.isRetryable(new AuthenticationFailedException("Too many login failures")));
+        assertFalse(AdaptiveThrottle.isRetryable(new MessagingException("Fetch failed", new IOException("Unknown charset: x-unknown"))));
+        assertFalse(AdaptiveThrottle.isRetryable(new MessagingException("BAD Command syntax error")));
+    }
+
+    @Test
+    void backsOffOncePerThrottlingEvent() {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(8, 400, true);
+        assertEquals(TimeUnit.SECONDS.toMillis(2), throttle.throttled(new MessagingException("NO [LIMIT] Too many connections")));
+        assertEquals(4, throttle.getConnections());
+        assertEquals(200, throttle.getFetchSize());
+
+        // The other readers lose their connections in the same event, they only wait for the pause to end
+        long pause = throttle.throttled(new FolderClosedException(null));
+        assertTrue(pause > 0 && pause <= TimeUnit.SECONDS.toMillis(2));
+        assertEquals(4, throttle.getConnections());
+        assertEquals(200, throttle.getFetchSize());
+    }
+
+    @Test
+    void growsWhileTheServerKeepsUp() {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(8, 400, true);
+        throttle.throttled(new MessagingException("NO [LIMIT] Too many connections"));
+        for (int fetch = 0; fetch < 8; fetch++) {
+            // Every fetch took one second, far from looking slow compared to the others
+            throttle.fetched(throttle.getFetchSize(), System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(5, throttle.getConnections());
+        assertEquals(250, throttle.getFetchSize());
+    }
+
+    @Test
+    void keepsConfiguredLimitsWhenNotAdaptive() {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(8, 400, false);
+        assertEquals(TimeUnit.SECONDS.toMillis(2), throttle.throttled(new MessagingException("NO [LIMIT] Too many connections")));
+        assertEquals(8, throttle.getConnections());
+        assertEquals(400, throttle.getFetchSize());
+    }
+
+}
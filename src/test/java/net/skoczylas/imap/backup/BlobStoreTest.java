@@ -0,0 +1,106 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BlobStoreTest {
+
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @TempDir
+    Path root;
+
+    @Test
+    void storesIdenticalContentOnce() throws IOException {
+        BlobStore blobStore = new BlobStore(root.resolve("blobs"));
+        Path first = blobStore.add(tempFile(blobStore, "attachment"), HASH);
+        Path second = blobStore.add(tempFile(blobStore, "attachment"), HASH);
+        Path third = blobStore.add(tempFile(blobStore, "attachment"), HASH);
+
+        assertEquals(root.resolve("blobs").resolve("9f").resolve(HASH), first);
+        assertEquals(first, second);
+        assertEquals(first, third);
+        assertEquals("attachment", Files.readString(first));
+        assertEquals("Blob store: stored=1, duplicates=2, saved=20 bytes", blobStore.toString());
+        try (Stream<Path> files = Files.list(blobStore.getTempFolder())) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void countsConcurrentWritersOfTheSameContent() throws Exception {
+        BlobStore blobStore = new BlobStore(root.resolve("blobs"));
+        int writers = 8;
+        List<Path> tempFiles = new ArrayList<>();
+        for (int writer = 0; writer < writers; writer++) {
+            tempFiles.add(tempFile(blobStore, "same"));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Path>> blobs = new ArrayList<>();
+            for (Path tempFile : tempFiles) {
+                blobs.add(executor.submit(() -> {
+                    start.await();
+                    return blobStore.add(tempFile, HASH);
+                }));
+            }
+            start.countDown();
+            for (Future<Path> blob : blobs) {
+                assertEquals("same", Files.readString(blob.get(1, TimeUnit.MINUTES)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("Blob store: stored=1, duplicates=7, saved=28 bytes", blobStore.toString());
+    }
+
+    @Test
+    void linksFilesToTheirBlobs() throws IOException {
+        BlobStore blobStore = new BlobStore(root.resolve("blobs"));
+        Path blob = blobStore.add(tempFile(blobStore, "report"), HASH);
+        Path mailFolder = Files.createDirectories(root.resolve("mails").resolve("1"));
+        Path file = mailFolder.resolve("report.pdf");
+        blobStore.link(blob, file);
+
+        assertEquals("report", Files.readString(file));
+        assertThrows(FileAlreadyExistsException.class, () -> blobStore.link(blob, file));
+    }
+
+    @Test
+    void readsManifestEntries() throws IOException {
+        Path mailFolder = Files.createDirectories(root.resolve("mails").resolve("1"));
+        String entries = "report.pdf\t../../blobs/9f/" + HASH + "\ninvalid line\n";
+        Files.write(mailFolder.resolve(BlobStore.MANIFEST_FILE), entries.getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Path> manifest = BlobStore.readManifest(mailFolder);
+        assertEquals(1, manifest.size());
+        assertEquals(root.resolve("blobs").resolve("9f").resolve(HASH), manifest.get("report.pdf"));
+        assertEquals(0, BlobStore.readManifest(root).size());
+    }
+
+    private static Path tempFile(BlobStore blobStore, String content) throws IOException {
+        Path tempFile = Files.createTempFile(blobStore.getTempFolder(), ".", ".part");
+        Files.writeString(tempFile, content);
+        return tempFile;
+    }
+
+}
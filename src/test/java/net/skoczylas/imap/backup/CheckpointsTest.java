@@ -0,0 +1,68 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class CheckpointsTest {
+
+    @TempDir
+    Path accountPath;
+
+    @Test
+    void keepsCheckpointsForTheNextRun() throws IOException {
+        new Checkpoints(accountPath).update("INBOX", 7, 120);
+
+        Checkpoints.Checkpoint checkpoint = new Checkpoints(accountPath).get("INBOX").orElseThrow();
+        assertEquals(7, checkpoint.getUidValidity());
+        assertEquals(120, checkpoint.getLastUid());
+        assertFalse(new Checkpoints(accountPath).get("Sent").isPresent());
+    }
+
+    @Test
+    void startsOverAfterUidValidityChange() throws IOException {
+        Checkpoints checkpoints = new Checkpoints(accountPath);
+        checkpoints.update("INBOX", 7, 120);
+        assertEquals(Optional.of(120L), checkpoints.getLastUid("INBOX", 7));
+        assertEquals(Optional.empty(), checkpoints.getLastUid("INBOX", 8));
+
+        checkpoints.update("INBOX", 8, 3);
+        Checkpoints reloaded = new Checkpoints(accountPath);
+        assertEquals(Optional.empty(), reloaded.getLastUid("INBOX", 7));
+        assertEquals(Optional.of(3L), reloaded.getLastUid("INBOX", 8));
+    }
+
+    @Test
+    void keepsCheckpointsInMemoryOnly() throws IOException {
+        new Checkpoints(accountPath).update("INBOX", 7, 120);
+
+        Checkpoints checkpoints = new Checkpoints(accountPath, false);
+        assertEquals(Optional.of(120L), checkpoints.getLastUid("INBOX", 7));
+        checkpoints.update("INBOX", 7, 200);
+        checkpoints.update("Sent", 1, 5);
+        assertEquals(Optional.of(200L), checkpoints.getLastUid("INBOX", 7));
+
+        Checkpoints reloaded = new Checkpoints(accountPath);
+        assertEquals(Optional.of(120L), reloaded.getLastUid("INBOX", 7));
+        assertFalse(reloaded.get("Sent").isPresent());
+    }
+
+    @Test
+    void ignoresInvalidCheckpoints() throws IOException {
+        Files.write(accountPath.resolve(Checkpoints.FILE_NAME), "INBOX=7\nSent=1,x\nDrafts=2, 9\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        Checkpoints checkpoints = new Checkpoints(accountPath);
+        assertFalse(checkpoints.get("INBOX").isPresent());
+        assertFalse(checkpoints.get("Sent").isPresent());
+        assertEquals(Optional.of(9L), checkpoints.getLastUid("Drafts", 2));
+    }
+
+}
@@ -0,0 +1,138 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MailIndexTest {
+
+    @TempDir
+    Path accountPath;
+
+    @Test
+    void loadsAppendedRecords() throws IOException {
+        MailInfo first = mail(1, "First mail");
+        MailInfo second = mail(2, "Second mail");
+        long firstOffset;
+        long secondOffset;
+        try (MailIndex index = new MailIndex(accountPath, offset -> { })) {
+            firstOffset = index.append(first);
+            secondOffset = index.append(second);
+            // Only the first record of a hash is written
+            assertEquals(-1, index.append(first));
+        }
+
+        List<Long> offsets = new ArrayList<>();
+        try (MailIndex index = new MailIndex(accountPath, offsets::add)) {
+            assertEquals(Arrays.asList(firstOffset, secondOffset), offsets);
+            assertEquals(2, index.size());
+            MailInfo read = index.read(secondOffset);
+            assertEquals(second.getHash(), read.getHash());
+            assertEquals(second.getNumber(), read.getNumber());
+            assertEquals("Second mail", read.getSubject());
+            assertEquals("INBOX/Projects", read.getFolderPath());
+            assertEquals(second.getReceivedAt(), read.getReceivedAt());
+            assertEquals("alice@example.com", read.getFrom().get(0).getAddress());
+            assertEquals(-1, index.append(second));
+        }
+    }
+
+    @Test
+    void skipsUnfinishedRecordBeforeCompleteOnes() throws IOException {
+        long firstOffset;
+        long secondOffset;
+        long thirdOffset;
+        try (MailIndex index = new MailIndex(accountPath, offset -> { })) {
+            firstOffset = index.append(mail(1, "First mail"));
+            secondOffset = index.append(mail(2, "Second mail"));
+            thirdOffset = index.append(mail(3, "Third mail"));
+        }
+        // A writer that reserved the first range crashed before its record was complete
+        overwrite(firstOffset + 20, new byte[]{0x55, 0x55, 0x55, 0x55});
+        long size = Files.size(indexFile());
+
+        List<Long> offsets = new ArrayList<>();
+        long fourthOffset;
+        try (MailIndex index = new MailIndex(accountPath, offsets::add)) {
+            assertEquals(Arrays.asList(secondOffset, thirdOffset), offsets);
+            assertEquals(size, Files.size(indexFile()));
+            assertEquals("Third mail", index.read(thirdOffset).getSubject());
+            assertThrows(IOException.class, () -> index.read(firstOffset));
+            fourthOffset = index.append(mail(4, "Fourth mail"));
+            assertEquals(size, fourthOffset);
+        }
+
+        offsets.clear();
+        try (MailIndex index = new MailIndex(accountPath, offsets::add)) {
+            assertEquals(Arrays.asList(secondOffset, thirdOffset, fourthOffset), offsets);
+        }
+    }
+
+    @Test
+    void truncatesIncompleteRecordAtTheEnd() throws IOException {
+        long firstOffset;
+        try (MailIndex index = new MailIndex(accountPath, offset -> { })) {
+            firstOffset = index.append(mail(1, "First mail"));
+        }
+        long size = Files.size(indexFile());
+        overwrite(size, new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5, 6, 7, 8});
+
+        List<Long> offsets = new ArrayList<>();
+        try (MailIndex index = new MailIndex(accountPath, offsets::add)) {
+            assertEquals(Collections.singletonList(firstOffset), offsets);
+            assertEquals(size, Files.size(indexFile()));
+            assertEquals(size, index.append(mail(2, "Second mail")));
+        }
+    }
+
+    @Test
+    void readOnlyIndexLeavesFileUntouched() throws IOException {
+        long firstOffset;
+        try (MailIndex index = new MailIndex(accountPath, offset -> { })) {
+            firstOffset = index.append(mail(1, "First mail"));
+        }
+        // A running backup may be in the middle of writing the next record
+        overwrite(Files.size(indexFile()), new byte[]{0, 0, 1, 0, 1, 2, 3});
+        long size = Files.size(indexFile());
+
+        try (MailIndex index = MailIndex.openReadOnly(accountPath)) {
+            assertEquals("First mail", index.read(firstOffset).getSubject());
+            assertThrows(IOException.class, () -> index.read(firstOffset + 1));
+            assertThrows(IOException.class, () -> index.append(mail(2, "Second mail")));
+        }
+        assertEquals(size, Files.size(indexFile()));
+    }
+
+    private Path indexFile() {
+        return accountPath.resolve(MailIndex.FILE_NAME);
+    }
+
+    private void overwrite(long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static MailInfo mail(int number, String subject) {
+        return new MailInfo(number, new ArrayDeque<>(Arrays.asList("INBOX", "Projects")),
+                Collections.singletonList(new MailAddress("alice@example.com", "Alice <alice@example.com>")),
+                Collections.singletonList(new MailAddress("bob@example.com", "bob@example.com")),
+                subject, LocalDateTime.of(2021, 5, 1, 12, 30), null);
+    }
+
+}
@@ -0,0 +1,81 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailLogTest {
+
+    @Test
+    void keepsOffsetsAcrossSegments() {
+        MailLog log = new MailLog();
+        int count = 3 * 4096 + 7;
+        for (int index = 0; index < count; index++) {
+            // Offset 0 must not look like a free slot
+            assertEquals(index, log.append(index * 10L));
+        }
+        assertEquals(count, log.size());
+        assertEquals(0, log.get(0));
+        assertEquals(4096 * 10L, log.get(4096));
+        assertArrayEquals(new long[]{(count - 2) * 10L, (count - 1) * 10L}, log.snapshot(count - 2));
+        assertEquals(0, log.snapshot(count).length);
+        assertThrows(IndexOutOfBoundsException.class, () -> log.get(count));
+    }
+
+    @Test
+    void publishesEveryConcurrentAppend() throws Exception {
+        MailLog log = new MailLog();
+        int threads = 8;
+        int appends = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?>[] writers = new Future<?>[threads];
+            for (int thread = 0; thread < threads; thread++) {
+                long base = (long) thread * appends;
+                writers[thread] = executor.submit(() -> {
+                    start.await();
+                    for (int append = 0; append < appends; append++) {
+                        log.append(base + append);
+                    }
+                    return null;
+                });
+            }
+            // A reader running alongside must only ever see set slots
+            Future<?> reader = executor.submit(() -> {
+                start.await();
+                int seen = 0;
+                while (seen < threads * appends) {
+                    long[] offsets = log.snapshot(seen);
+                    assertTrue(Arrays.stream(offsets).allMatch(offset -> offset >= 0));
+                    seen += offsets.length;
+                }
+                return null;
+            });
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+            reader.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * appends, log.size());
+        long[] offsets = log.snapshot(0);
+        Arrays.sort(offsets);
+        assertArrayEquals(LongStream.range(0, (long) threads * appends).toArray(), offsets);
+    }
+
+}
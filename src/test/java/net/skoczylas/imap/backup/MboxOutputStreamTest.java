@@ -0,0 +1,53 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MboxOutputStreamTest {
+
+    @Test
+    void quotesFromLines() throws IOException {
+        assertEquals("Subject: Test\n\n>From here on\nbody\n\n", write("Subject: Test\r\n\r\nFrom here on\r\nbody\r\n"));
+        assertEquals(">From the first line\n\n", write("From the first line\n"));
+    }
+
+    @Test
+    void quotesQuotedFromLinesOnceMore() throws IOException {
+        assertEquals(">>From a\n>>>From b\n\n", write(">From a\n>>From b\n"));
+    }
+
+    @Test
+    void leavesOtherLinesAlone() throws IOException {
+        assertEquals("Fromage\n>Frog\nsaid From me\nFrom\n>\n\n", write("Fromage\n>Frog\nsaid From me\nFrom\n>\n"));
+    }
+
+    @Test
+    void quotesFromLinesSplitAcrossWrites() throws IOException {
+        assertEquals("a\n>From me\n\n", write("a\nFr", "om", " me\n"));
+        assertEquals("a\n>From me\n\n", write("a\r", "\nFrom me\r", "\n"));
+    }
+
+    @Test
+    void endsEveryMessageWithAnEmptyLine() throws IOException {
+        assertEquals("body\n\n", write("body"));
+        assertEquals("Fro\n\n", write("Fro"));
+        assertEquals("a\rb\r\n\n", write("a\rb\r"));
+    }
+
+    private static String write(String... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MboxOutputStream output = new MboxOutputStream(bytes)) {
+            for (String part : parts) {
+                output.write(part.getBytes(StandardCharsets.US_ASCII));
+            }
+            output.endMessage();
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,117 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.mail.Flags;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SizeTerm;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageFilterTest {
+
+    @Test
+    void searchesNothingWithoutFilter() {
+        MessageFilter filter = new MessageFilter(null, null, 0, 0, null, null, null);
+        assertFalse(filter.getSearchTerm().isPresent());
+        assertTrue(filter.includes("INBOX"));
+    }
+
+    @Test
+    void includesBothSizeLimits() {
+        List<SearchTerm> terms = getTerms(new MessageFilter(null, null, 100, 200, null, null, null));
+        assertEquals(2, terms.size());
+        // IMAP only has LARGER and SMALLER, the limits are moved by one byte
+        assertSize(ComparisonTerm.GT, 99, terms.get(0));
+        assertSize(ComparisonTerm.LT, 201, terms.get(1));
+    }
+
+    @Test
+    void limitsSizesToImapNumbers() {
+        assertTrue(getTerms(new MessageFilter(null, null, 0, 3_000_000_000L, null, null, null)).isEmpty());
+        List<SearchTerm> terms = getTerms(new MessageFilter(null, null, 3_000_000_000L, 0, null, null, null));
+        assertEquals(1, terms.size());
+        assertSize(ComparisonTerm.GT, Integer.MAX_VALUE, terms.get(0));
+    }
+
+    @Test
+    void parsesDaysAndRelativeDays() {
+        List<SearchTerm> terms = getTerms(new MessageFilter("2021-03-01", "30d", 0, 0, null, null, null));
+        assertEquals(2, terms.size());
+        assertDate(ComparisonTerm.GE, LocalDate.of(2021, 3, 1), terms.get(0));
+        assertDate(ComparisonTerm.LT, LocalDate.now().minusDays(30), terms.get(1));
+    }
+
+    @Test
+    void rejectsInvalidDates() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageFilter("03/01/2021", null, 0, 0, null, null, null));
+    }
+
+    @Test
+    void parsesFlagsAndNegations() {
+        List<SearchTerm> terms = getTerms(new MessageFilter(null, null, 0, 0, "seen, !deleted,,Important", null, null));
+        assertEquals(3, terms.size());
+        FlagTerm seen = (FlagTerm) terms.get(0);
+        assertTrue(seen.getFlags().contains(Flags.Flag.SEEN));
+        assertTrue(seen.getTestSet());
+        FlagTerm deleted = (FlagTerm) terms.get(1);
+        assertTrue(deleted.getFlags().contains(Flags.Flag.DELETED));
+        assertFalse(deleted.getTestSet());
+        FlagTerm keyword = (FlagTerm) terms.get(2);
+        assertTrue(keyword.getFlags().contains("Important"));
+        assertTrue(keyword.getTestSet());
+    }
+
+    @Test
+    void matchesFolderPatterns() {
+        MessageFilter filter = new MessageFilter(null, null, 0, 0, null, "INBOX, Projects/*, Sent.Items", "*/Archive*");
+        assertTrue(filter.includes("INBOX"));
+        assertTrue(filter.includes("inbox"));
+        assertTrue(filter.includes("Projects/Alpha"));
+        assertTrue(filter.includes("Sent.Items"));
+        assertFalse(filter.includes("SentXItems"));
+        assertFalse(filter.includes("Projects"));
+        assertFalse(filter.includes("Projects/Archive2020"));
+        assertFalse(filter.includes("Trash"));
+    }
+
+    @Test
+    void matchesSingleCharacters() {
+        MessageFilter filter = new MessageFilter(null, null, 0, 0, null, null, "Archive-20??");
+        assertFalse(filter.includes("Archive-2021"));
+        assertTrue(filter.includes("Archive-2021-01"));
+        assertTrue(filter.includes("INBOX"));
+    }
+
+    private static List<SearchTerm> getTerms(MessageFilter filter) {
+        return filter.getSearchTerm()
+                .map(term -> term instanceof AndTerm ? Arrays.asList(((AndTerm) term).getTerms()) : Collections.singletonList(term))
+                .orElse(Collections.emptyList());
+    }
+
+    private static void assertSize(int comparison, int size, SearchTerm term) {
+        SizeTerm sizeTerm = (SizeTerm) term;
+        assertEquals(comparison, sizeTerm.getComparison());
+        assertEquals(size, sizeTerm.getNumber());
+    }
+
+    private static void assertDate(int comparison, LocalDate day, SearchTerm term) {
+        ReceivedDateTerm dateTerm = (ReceivedDateTerm) term;
+        assertEquals(comparison, dateTerm.getComparison());
+        assertEquals(Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant()), dateTerm.getDate());
+    }
+
+}
@@ -0,0 +1,76 @@
+package net.skoczylas.imap.backup;
+
+import jakarta.activation.MimeType;
+import jakarta.activation.MimeTypeParseException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartFilterTest {
+
+    @Test
+    void isInactiveWithoutLimits() throws Exception {
+        PartFilter filter = new PartFilter(0, " ", null, false);
+        assertFalse(filter.isActive());
+        assertFalse(filter.getRejection(part(Integer.MAX_VALUE), type("application/zip")).isPresent());
+        assertTrue(new PartFilter(0, null, null, true).isActive());
+    }
+
+    @Test
+    void rejectsLargeParts() throws Exception {
+        PartFilter filter = new PartFilter(1000, null, null, false);
+        assertEquals(Optional.of("size 1001 > 1000"), filter.getRejection(part(1001), type("application/pdf")));
+        assertFalse(filter.getRejection(part(1000), type("application/pdf")).isPresent());
+        // A multipart is never skipped as a whole, only its parts are checked
+        assertFalse(filter.getRejection(part(5000), type("multipart/mixed")).isPresent());
+    }
+
+    @Test
+    void matchesAllowedAndDeniedTypes() throws Exception {
+        PartFilter filter = new PartFilter(0, "text/*, Application/PDF, image/*", "image/gif", false);
+        assertFalse(filter.getRejection(part(10), type("text/plain")).isPresent());
+        assertFalse(filter.getRejection(part(10), type("application/pdf; name=a.pdf")).isPresent());
+        assertFalse(filter.getRejection(part(10), type("image/png")).isPresent());
+        assertEquals(Optional.of("type image/gif denied"), filter.getRejection(part(10), type("image/gif")));
+        assertEquals(Optional.of("type application/zip not allowed"), filter.getRejection(part(10), type("application/zip")));
+        assertEquals(Optional.of("type textual/plain not allowed"), filter.getRejection(part(10), type("textual/plain")));
+    }
+
+    @Test
+    void rejectsInlineImagesOnly() throws Exception {
+        PartFilter filter = new PartFilter(0, null, null, true);
+        MimeBodyPart inline = part(10);
+        inline.setDisposition(Part.INLINE);
+        MimeBodyPart referenced = part(10);
+        referenced.setContentID("<logo@example.com>");
+        MimeBodyPart attached = part(10);
+        attached.setDisposition(Part.ATTACHMENT);
+        attached.setContentID("<photo@example.com>");
+
+        assertEquals(Optional.of("inline image"), filter.getRejection(inline, type("image/png")));
+        assertEquals(Optional.of("inline image"), filter.getRejection(referenced, type("image/png")));
+        assertFalse(filter.getRejection(attached, type("image/png")).isPresent());
+        assertFalse(filter.getRejection(inline, type("text/html")).isPresent());
+    }
+
+    private static MimeBodyPart part(int size) {
+        return new MimeBodyPart() {
+            @Override
+            public int getSize() throws MessagingException {
+                return size;
+            }
+        };
+    }
+
+    private static MimeType type(String type) throws MimeTypeParseException {
+        return new MimeType(type);
+    }
+
+}
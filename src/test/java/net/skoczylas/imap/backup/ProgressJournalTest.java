@@ -0,0 +1,88 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgressJournalTest {
+
+    private static final String COMPLETED_HASH = "a1".repeat(32);
+    private static final String INCOMPLETE_HASH = "b2".repeat(32);
+
+    @TempDir
+    Path rootPath;
+
+    @Test
+    void keepsCompletedMails() throws IOException {
+        Path accountPath = Files.createDirectories(rootPath.resolve("account"));
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            journal.start(COMPLETED_HASH, mailPath(COMPLETED_HASH));
+            journal.complete(COMPLETED_HASH);
+            assertTrue(journal.isCompleted(COMPLETED_HASH));
+        }
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            assertTrue(journal.isCompleted(COMPLETED_HASH));
+            assertFalse(journal.isCompleted(INCOMPLETE_HASH));
+            assertEquals(1, journal.getCompletedCount());
+        }
+    }
+
+    @Test
+    void removesStagingFoldersOfIncompleteMails() throws IOException {
+        Path accountPath = Files.createDirectories(rootPath.resolve("account"));
+        Path completedFolder = createMailFolder(accountPath.resolve(mailPath(COMPLETED_HASH)));
+        Path incompleteFolder = createMailFolder(accountPath.resolve(mailPath(INCOMPLETE_HASH)));
+        Path stagingFolder = createMailFolder(incompleteFolder.resolveSibling("." + INCOMPLETE_HASH + ".1234"));
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            journal.start(COMPLETED_HASH, mailPath(COMPLETED_HASH));
+            journal.complete(COMPLETED_HASH);
+            journal.start(INCOMPLETE_HASH, mailPath(INCOMPLETE_HASH));
+        }
+
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            assertFalse(journal.isCompleted(INCOMPLETE_HASH));
+        }
+        assertTrue(Files.isDirectory(completedFolder));
+        // The folder may hold the mail of an earlier run, it is completed in place
+        assertTrue(Files.isDirectory(incompleteFolder));
+        assertFalse(Files.exists(stagingFolder));
+        // Only completed mails are kept in the compacted journal
+        assertEquals(Collections.singletonList("C " + COMPLETED_HASH),
+                Files.readAllLines(accountPath.resolve(ProgressJournal.FILE_NAME), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void ignoresPathsOutsideTheAccount() throws IOException {
+        Path accountPath = Files.createDirectories(rootPath.resolve("account"));
+        Path outsideFolder = createMailFolder(rootPath.resolve("outside"));
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            journal.start(INCOMPLETE_HASH, Paths.get("..", "outside"));
+        }
+
+        try (ProgressJournal journal = new ProgressJournal(accountPath)) {
+            assertEquals(0, journal.getCompletedCount());
+        }
+        assertTrue(Files.isDirectory(outsideFolder));
+    }
+
+    private static Path mailPath(String hash) {
+        return Paths.get("INBOX", "2021", "05_01", hash);
+    }
+
+    private static Path createMailFolder(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        Files.write(folder.resolve("mail.txt"), "Hello".getBytes(StandardCharsets.UTF_8));
+        return folder;
+    }
+
+}
@@ -0,0 +1,120 @@
+package net.skoczylas.imap.backup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+    @TempDir
+    Path accountPath;
+
+    private Stage flushStage;
+
+    @BeforeEach
+    void startStage() {
+        flushStage = new Stage("search", 1, 10);
+    }
+
+    @AfterEach
+    void stopStage() {
+        flushStage.shutdown();
+    }
+
+    @Test
+    void findsMailsByFieldsAndPrefixes() throws IOException {
+        MailInfo report = mail(1, "Quarterly report", "alice@example.com", LocalDateTime.of(2021, 5, 1, 9, 0));
+        MailInfo meeting = mail(2, "Meeting", "bob@example.com", LocalDateTime.of(2021, 6, 2, 9, 0));
+        MailInfo annual = mail(3, "Annual report", "alice@example.com", LocalDateTime.of(2020, 1, 3, 9, 0));
+        try (SearchIndex index = new SearchIndex(accountPath, flushStage)) {
+            index.add(100, report);
+            index.addText(meeting, "<p>Budget for the <b>offsite</b></p>", true);
+            index.add(200, meeting);
+            index.add(300, annual);
+        }
+
+        assertArrayEquals(new long[]{100, 300}, SearchIndex.search(accountPath, "report"));
+        assertArrayEquals(new long[]{100}, SearchIndex.search(accountPath, "subject:quart*"));
+        assertArrayEquals(new long[]{100, 300}, SearchIndex.search(accountPath, "from:alice"));
+        assertArrayEquals(new long[]{200}, SearchIndex.search(accountPath, "body:offsite"));
+        assertArrayEquals(new long[]{200}, SearchIndex.search(accountPath, "budget"));
+        assertArrayEquals(new long[0], SearchIndex.search(accountPath, "body:p"));
+        assertArrayEquals(new long[]{100, 200}, SearchIndex.search(accountPath, "date:2021"));
+        assertArrayEquals(new long[]{200}, SearchIndex.search(accountPath, "date:2021-06-02"));
+        assertArrayEquals(new long[]{300}, SearchIndex.search(accountPath, "subject:\"annual report\""));
+        assertArrayEquals(new long[]{100}, SearchIndex.search(accountPath, "alice date:2021-05"));
+        assertArrayEquals(new long[0], SearchIndex.search(accountPath, "missing"));
+    }
+
+    @Test
+    void dropsTextOfDiscardedMails() throws IOException {
+        MailInfo mail = mail(1, "Hello", "alice@example.com", LocalDateTime.of(2021, 5, 1, 9, 0));
+        try (SearchIndex index = new SearchIndex(accountPath, flushStage)) {
+            index.addText(mail, "confidential", false);
+            index.discard(mail);
+            index.add(100, mail);
+        }
+
+        assertArrayEquals(new long[0], SearchIndex.search(accountPath, "confidential"));
+        assertArrayEquals(new long[]{100}, SearchIndex.search(accountPath, "hello"));
+    }
+
+    @Test
+    void mergesFullSegments() throws IOException {
+        MailInfo alice = mail(1, "Status", "alice@example.com", LocalDateTime.of(2021, 5, 1, 9, 0));
+        MailInfo bob = mail(2, "Status", "bob@example.com", LocalDateTime.of(2021, 5, 1, 9, 0));
+        // Eight full buffers make eight segments of the first level, they are merged into one
+        int mails = 8 * 5000;
+        try (SearchIndex index = new SearchIndex(accountPath, flushStage)) {
+            for (int offset = 0; offset < mails; offset++) {
+                index.add(offset, offset % 2 == 0 ? alice : bob);
+            }
+        }
+
+        assertEquals(Collections.singletonList("segment-1-0000000009.idx"), listSegments());
+        long[] fromAlice = SearchIndex.search(accountPath, "from:alice");
+        assertEquals(mails / 2, fromAlice.length);
+        assertTrue(Arrays.stream(fromAlice).allMatch(offset -> offset % 2 == 0));
+        assertEquals(mails, SearchIndex.search(accountPath, "status").length);
+
+        // A later run continues with the next segment number
+        try (SearchIndex index = new SearchIndex(accountPath, flushStage)) {
+            assertEquals(mails, index.getIndexedDocs().size());
+            index.add(mails, alice);
+        }
+        assertEquals(Arrays.asList("segment-0-0000000010.idx", "segment-1-0000000009.idx"), listSegments());
+        assertEquals(mails / 2 + 1, SearchIndex.search(accountPath, "from:alice").length);
+    }
+
+    private List<String> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(accountPath.resolve(SearchIndex.FOLDER_NAME))) {
+            return files.map(file -> file.getFileName().toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static MailInfo mail(int number, String subject, String from, LocalDateTime receivedAt) {
+        return new MailInfo(number, new ArrayDeque<>(Collections.singletonList("INBOX")),
+                Collections.singletonList(new MailAddress(from, from)),
+                Collections.singletonList(new MailAddress("team@example.com", "team@example.com")),
+                subject, receivedAt, null);
+    }
+
+}